@@ -0,0 +1,70 @@
+package com.company.benchmarks;
+
+import com.company.DbEntity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Генератор синтетических xml-документов со структурой, похожей на формы из Main:
+ * корневой тег root, период, тег Document с тегами powerFacilitiesVid и subdocuments с записями item.
+ */
+public final class DocumentGenerator {
+
+    private DocumentGenerator() {
+        //empty
+    }
+
+    /**
+     * Создает документ.
+     * @param itemCount количество записей item и тегов powerFacilitiesVid.
+     * @param depth глубина вложенности тегов внутри каждой записи item.
+     * @return документ в кодировке UTF-8.
+     */
+    public static byte[] generate(int itemCount, int depth) {
+        StringBuilder xml = new StringBuilder(itemCount * (64 + depth * 24) + 256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<root>\n");
+        xml.append("  <periodId>2016</periodId>\n");
+        xml.append("  <Document>\n");
+        for (int index = 0; index < itemCount; index++) {
+            //каждое десятое значение не проходит валидацию по типу
+            xml.append("    <powerFacilitiesVid>").append(index % 10 == 9 ? "v" + index : String.valueOf(index))
+                    .append("</powerFacilitiesVid>\n");
+        }
+        xml.append("    <subdocuments>\n");
+        for (int index = 0; index < itemCount; index++) {
+            xml.append("      <item>");
+            for (int level = 0; level < depth; level++) {
+                xml.append("<level").append(level).append('>');
+            }
+            xml.append("<value>").append(index).append("</value>");
+            for (int level = depth - 1; level >= 0; level--) {
+                xml.append("</level").append(level).append('>');
+            }
+            xml.append("</item>\n");
+        }
+        xml.append("    </subdocuments>\n");
+        xml.append("    <code>REF-2016-").append(itemCount).append("</code>\n");
+        xml.append("  </Document>\n");
+        xml.append("  <ref>2016</ref>\n");
+        xml.append("</root>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Описания тегов, как в Main.
+     * @return список описаний.
+     */
+    public static List<DbEntity> dbEntities() {
+        List<DbEntity> dbEntityList = new ArrayList<>();
+        dbEntityList.add(new DbEntity().setId(1).setName("root"));
+        dbEntityList.add(new DbEntity().setId(2).setName("Document").setChangesName("Form"));
+        dbEntityList.add(new DbEntity().setId(3).setName("powerFacilitiesVid").setChangesName("powerFacility")
+                .setChildTag("vid").setPatternType("^\\d+$"));
+        dbEntityList.add(new DbEntity().setId(4).setName("periodId").setPatternType("^\\d+$"));
+        dbEntityList.add(new DbEntity().setId(5).setName("subdocuments").setParentTag("item").setChildTag("BeanList"));
+        return dbEntityList;
+    }
+}
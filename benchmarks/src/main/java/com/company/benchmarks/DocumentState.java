@@ -0,0 +1,49 @@
+package com.company.benchmarks;
+
+import com.company.XmlFile;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+
+/**
+ * Сгенерированный документ заданного размера и глубины, общий для всех итераций.
+ */
+@State(Scope.Benchmark)
+public class DocumentState {
+
+    /**
+     * Поток, отбрасывающий все записанные байты.
+     */
+    static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+            //empty
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            //empty
+        }
+    };
+
+    @Param({"100", "10000"})
+    public int itemCount;
+
+    @Param({"2", "8"})
+    public int depth;
+
+    byte[] xml;
+
+    @Setup
+    public void generate() {
+        xml = DocumentGenerator.generate(itemCount, depth);
+    }
+
+    XmlFile parse() throws Exception {
+        return new XmlFile(new ByteArrayInputStream(xml));
+    }
+}
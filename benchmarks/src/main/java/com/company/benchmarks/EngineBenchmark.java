@@ -0,0 +1,102 @@
+package com.company.benchmarks;
+
+import com.company.DbEntity;
+import com.company.RuleSet;
+import com.company.XmlFactories;
+import com.company.XmlFile;
+import com.company.XmlInput;
+import com.company.XsltRuleEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полная обработка документа, от байт до байт, через DOM и через скомпилированные xslt.
+ * Движок xslt не выполняет валидацию и changeRootTag, поэтому оба движка выполняют только структурные правила
+ * из Main без переноса тегов.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+    private byte[] xml;
+    private RuleSet ruleSet;
+    private XsltRuleEngine xsltRuleEngine;
+
+    @Setup(Level.Trial)
+    public void compile(DocumentState state) throws Exception {
+        xml = state.xml;
+        List<DbEntity> dbEntityList = new ArrayList<>();
+        for (DbEntity dbEntity : DocumentGenerator.dbEntities()) {
+            dbEntity.setPatternType(null);
+            if (dbEntity.parentTag != null) {
+                dbEntity.setParentTag(null).setChildTag(null);
+            }
+            dbEntityList.add(dbEntity);
+        }
+        ruleSet = RuleSet.fromDbEntities(dbEntityList);
+        xsltRuleEngine = XsltRuleEngine.forRuleSet(ruleSet);
+        checkEquivalence();
+    }
+
+    /**
+     * Результаты движков должны совпадать с точностью до записи пустых тегов и объявления xml,
+     * иначе сравнивать их скорость бессмысленно.
+     */
+    private void checkEquivalence() throws Exception {
+        ByteArrayOutputStream domOutput = new ByteArrayOutputStream();
+        dom(domOutput);
+        ByteArrayOutputStream xsltOutput = new ByteArrayOutputStream();
+        xslt(xsltOutput);
+        if (!parse(domOutput.toByteArray()).isEqualNode(parse(xsltOutput.toByteArray()))) {
+            throw new IllegalStateException("Результаты DOM и xslt не совпадают:\n"
+                    + domOutput.toString("UTF-8") + "\n" + xsltOutput.toString("UTF-8"));
+        }
+    }
+
+    private static Document parse(byte[] bytes) throws Exception {
+        Document document = XmlFactories.documentBuilder().parse(new ByteArrayInputStream(bytes));
+        document.normalizeDocument();
+        return document;
+    }
+
+    private void dom(OutputStream outputStream) throws Exception {
+        XmlFile xmlFile = new XmlFile(new ByteArrayInputStream(xml));
+        ruleSet.applyTo(xmlFile);
+        xmlFile.write(outputStream);
+    }
+
+    private void xslt(OutputStream outputStream) throws Exception {
+        xsltRuleEngine.transform(XmlInput.of(xml), outputStream);
+    }
+
+    @Benchmark
+    public void domEngine() throws Exception {
+        dom(DocumentState.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public void xsltEngine() throws Exception {
+        xslt(DocumentState.NULL_OUTPUT_STREAM);
+    }
+}
@@ -0,0 +1,92 @@
+package com.company.benchmarks;
+
+import com.company.DbEntity;
+import com.company.ParallelRuleExecutor;
+import com.company.RuleSet;
+import com.company.XmlFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выполнение полного набора правил, построенного по описаниям тегов из Main.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExecuteBenchmark {
+
+    private List<DbEntity> dbEntityList;
+    private RuleSet ruleSet;
+    private ParallelRuleExecutor parallelRuleExecutor;
+    private XmlFile xmlFile;
+
+    @Setup(Level.Trial)
+    public void compile() {
+        dbEntityList = DocumentGenerator.dbEntities();
+        ruleSet = RuleSet.fromDbEntities(dbEntityList);
+        parallelRuleExecutor = new ParallelRuleExecutor(ruleSet, "item");
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare(DocumentState state) throws Exception {
+        xmlFile = state.parse();
+    }
+
+    /**
+     * Набор правил, скомпилированный один раз.
+     */
+    @Benchmark
+    public XmlFile ruleSet() {
+        ruleSet.applyTo(xmlFile);
+        return xmlFile;
+    }
+
+    /**
+     * Тот же набор правил, локальные правила выполняются параллельно по записям item.
+     */
+    @Benchmark
+    public XmlFile parallel() {
+        parallelRuleExecutor.execute(xmlFile);
+        return xmlFile;
+    }
+
+    /**
+     * Правила добавляются в документ и выполняются методом execute().
+     */
+    @Benchmark
+    public XmlFile execute() {
+        for (DbEntity dbEntity : dbEntityList) {
+            if (dbEntity.patternType != null) {
+                xmlFile.typeValidation(dbEntity.name, dbEntity.patternType);
+            }
+            if (dbEntity.childTag != null) {
+                if (dbEntity.parentTag != null) {
+                    xmlFile.addNewNode(dbEntity.name, dbEntity.childTag);
+                    xmlFile.changeRootTag(dbEntity.parentTag, dbEntity.childTag);
+                } else {
+                    xmlFile.addNewTextNode(dbEntity.name, dbEntity.childTag);
+                }
+            }
+            if (dbEntity.changesName != null) {
+                xmlFile.changeNodeName(dbEntity.name, dbEntity.changesName);
+            }
+        }
+        xmlFile.execute();
+        return xmlFile;
+    }
+}
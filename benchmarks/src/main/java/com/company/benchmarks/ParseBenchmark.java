@@ -0,0 +1,38 @@
+package com.company.benchmarks;
+
+import com.company.CompactDocument;
+import com.company.XmlFile;
+import com.company.XmlInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение документа конструктором {@link XmlFile} и в компактное дерево {@link CompactDocument}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Benchmark
+    public XmlFile parse(DocumentState state) throws Exception {
+        return state.parse();
+    }
+
+    @Benchmark
+    public int compact(DocumentState state) throws Exception {
+        //буферы текста освобождаются сразу, а не копятся до сборки мусора
+        try (CompactDocument document = CompactDocument.parse(XmlInput.of(state.xml))) {
+            return document.getElementCount();
+        }
+    }
+}
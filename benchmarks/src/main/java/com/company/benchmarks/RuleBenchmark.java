@@ -0,0 +1,69 @@
+package com.company.benchmarks;
+
+import com.company.XmlFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выполнение одного правила над свежим документом. Чтение документа в замер не входит.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleBenchmark {
+
+    @Param({"changeNodeName", "addNewNode", "changeRootTag", "addNewTextNode", "typeValidation", "crossValidation"})
+    public String rule;
+
+    private XmlFile xmlFile;
+
+    @Setup(Level.Invocation)
+    public void prepare(DocumentState state) throws Exception {
+        xmlFile = state.parse();
+        switch (rule) {
+            case "changeNodeName":
+                xmlFile.changeNodeName("powerFacilitiesVid", "powerFacility");
+                break;
+            case "addNewNode":
+                xmlFile.addNewNode("item", "BeanList");
+                break;
+            case "changeRootTag":
+                //тег, в который переносятся записи, должен существовать до замера
+                xmlFile.addNewNode("subdocuments", "BeanList").execute();
+                xmlFile.changeRootTag("item", "BeanList");
+                break;
+            case "addNewTextNode":
+                xmlFile.addNewTextNode("powerFacilitiesVid", "vid");
+                break;
+            case "typeValidation":
+                xmlFile.typeValidation("powerFacilitiesVid", "^\\d+$");
+                break;
+            case "crossValidation":
+                xmlFile.crossValidation("code", "ref");
+                break;
+            default:
+                throw new IllegalArgumentException(rule);
+        }
+    }
+
+    @Benchmark
+    public XmlFile execute() {
+        xmlFile.execute();
+        return xmlFile;
+    }
+}
@@ -0,0 +1,52 @@
+package com.company.benchmarks;
+
+import com.company.OutputOptions;
+import com.company.XmlFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запись документа через Transformer и через быстрый сериализатор.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+
+    private static final OutputOptions FAST = new OutputOptions().setFastSerializer(true);
+
+    private XmlFile xmlFile;
+
+    @Setup
+    public void prepare(DocumentState state) throws Exception {
+        xmlFile = state.parse();
+    }
+
+    @Benchmark
+    public void transformer() throws Exception {
+        xmlFile.write(DocumentState.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public void fastSerializer() throws Exception {
+        xmlFile.write(DocumentState.NULL_OUTPUT_STREAM, FAST);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() throws Exception {
+        return xmlFile.toByteArray();
+    }
+}
@@ -0,0 +1,571 @@
+package com.company;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Компактное неизменяемое дерево xml-документа для чтения и валидации больших файлов, которые в виде DOM
+ * занимают в куче в 5-10 раз больше своего размера.
+ * <p>
+ * Хранятся только теги. Тег - это номер в порядке документа, корень имеет номер 0, а первый ребенок тега,
+ * если он есть, имеет следующий номер. Для каждого тега в массивах int[] хранятся номер имени в словаре имен,
+ * родитель и следующий сосед, а в long[] - позиции начала и конца его текста. Текст всех тегов хранится подряд
+ * в порядке документа в кодировке UTF-8, в буферах вне кучи ({@link ByteBuffer#allocateDirect(int)}),
+ * поэтому текст тега вместе со всеми вложенными тегами, как {@link org.w3c.dom.Node#getTextContent()}, - это
+ * непрерывный участок между открывающим и закрывающим тегом.
+ * Буферы вне кучи ограничены параметром JVM {@code -XX:MaxDirectMemorySize}, по умолчанию равным размеру кучи,
+ * а сборщик мусора освобождает их с задержкой, поэтому после работы с документом его нужно закрыть через
+ * {@link #close()}. Первый буфер сразу получает размер источника, если он известен, см. {@link XmlInput}.
+ * <p>
+ * Атрибуты, комментарии и инструкции обработки не хранятся. Как и парсер {@link XmlFile}, дерево строится
+ * без учета пространств имен, по полным именам тегов.
+ */
+public final class CompactDocument implements AutoCloseable {
+
+    /**
+     * Размер одного буфера текста.
+     */
+    static final int TEXT_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_TEXT_CHUNK_SIZE = 64 * 1024;
+
+    private final String[] names;
+    private final Map<String, Integer> nameIds;
+    private final int elementCount;
+    private final int[] nameIdByElement;
+    private final int[] parents;
+    private final int[] nextSiblings;
+    /**
+     * Позиции текста при открывающем и закрывающем теге.
+     */
+    private final long[] textStarts;
+    private final long[] textEnds;
+    private final long textLength;
+    private final ByteBuffer[] textChunks;
+    private boolean closed;
+
+    private CompactDocument(Builder builder) {
+        this.names = builder.names.toArray(new String[0]);
+        this.nameIds = builder.nameIds;
+        this.elementCount = builder.elementCount;
+        this.nameIdByElement = Arrays.copyOf(builder.nameIdByElement, elementCount);
+        this.parents = Arrays.copyOf(builder.parents, elementCount);
+        this.nextSiblings = Arrays.copyOf(builder.nextSiblings, elementCount);
+        this.textStarts = Arrays.copyOf(builder.textStarts, elementCount);
+        this.textEnds = Arrays.copyOf(builder.textEnds, elementCount);
+        this.textLength = builder.textLength;
+        this.textChunks = builder.textChunks.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Читает документ через StAX, не строя DOM.
+     * @param source источник xml-документа.
+     * @return дерево документа.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static CompactDocument parse(XmlInput source) throws IOException, XMLStreamException {
+        try (InputStream inputStream = source.openStream()) {
+            XMLStreamReader reader = XmlFactories.xmlInputFactory().createXMLStreamReader(inputStream);
+            Builder builder = new Builder(source.sizeHint());
+            try {
+                return builder.build(reader);
+            } catch (XMLStreamException | RuntimeException e) {
+                for (ByteBuffer chunk : builder.textChunks) {
+                    DirectBuffers.release(chunk);
+                }
+                throw e;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Освобождает буферы текста, не дожидаясь сборщика мусора. После закрытия текст тегов недоступен,
+     * а структура дерева по-прежнему читается. Метод нельзя вызывать, пока документ читают другие потоки.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (int index = 0; index < textChunks.length; index++) {
+            DirectBuffers.release(textChunks[index]);
+            textChunks[index] = null;
+        }
+    }
+
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * Размер текста всех тегов в байтах UTF-8.
+     */
+    public long getTextLength() {
+        return textLength;
+    }
+
+    /**
+     * @return номер корневого тега или -1, если документ пустой.
+     */
+    public int getDocumentElement() {
+        return elementCount > 0 ? 0 : -1;
+    }
+
+    public String getNodeName(int element) {
+        return names[nameIdByElement[element]];
+    }
+
+    /**
+     * @return номер родителя или -1 для корня.
+     */
+    public int getParentNode(int element) {
+        return parents[element];
+    }
+
+    /**
+     * @return номер первого ребенка или -1, если детей нет.
+     */
+    public int getFirstChild(int element) {
+        int next = element + 1;
+        return next < elementCount && parents[next] == element ? next : -1;
+    }
+
+    /**
+     * @return номер следующего соседа или -1.
+     */
+    public int getNextSibling(int element) {
+        return nextSiblings[element];
+    }
+
+    /**
+     * Все теги с данным именем в порядке документа.
+     * @param name имя тега.
+     * @return номера тегов.
+     */
+    public int[] getElementsByTagName(String name) {
+        Integer nameId = nameIds.get(name);
+        if (nameId == null) {
+            return new int[0];
+        }
+        int[] found = new int[16];
+        int count = 0;
+        for (int element = 0; element < elementCount; element++) {
+            if (nameIdByElement[element] == nameId) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = element;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Текст тега вместе с текстом всех вложенных тегов.
+     * @param element номер тега.
+     * @return текст.
+     * @throws IllegalStateException если документ закрыт.
+     */
+    public String getTextContent(int element) {
+        if (closed) {
+            throw new IllegalStateException("Документ закрыт.");
+        }
+        long start = textStarts[element];
+        long length = textEnds[element] - start;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Текст тега " + getNodeName(element) + " больше 2 Гб.");
+        }
+        byte[] bytes = new byte[(int) length];
+        int copied = 0;
+        while (copied < bytes.length) {
+            long position = start + copied;
+            ByteBuffer chunk = textChunks[(int) (position / TEXT_CHUNK_SIZE)].duplicate();
+            chunk.position((int) (position % TEXT_CHUNK_SIZE));
+            int count = Math.min(bytes.length - copied, chunk.remaining());
+            chunk.get(bytes, copied, count);
+            copied += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Путь к тегу, как в {@link XmlFile.AbstractRunnableRule#locationOf(org.w3c.dom.Node)}.
+     * @param element номер тега.
+     * @return путь вида {@code /root/Document/item[2]}.
+     */
+    public String getLocation(int element) {
+        return location(element, names);
+    }
+
+    /**
+     * Путь к тегу с именами тегов по словарю currentNames, номер которого - номер имени в документе.
+     */
+    private String location(int element, String[] currentNames) {
+        Deque<String> steps = new ArrayDeque<>();
+        for (int current = element; current >= 0; current = parents[current]) {
+            String name = currentNames[nameIdByElement[current]];
+            int position = 1;
+            int parent = parents[current];
+            for (int sibling = parent >= 0 ? parent + 1 : current; sibling != current;
+                 sibling = nextSiblings[sibling]) {
+                if (currentNames[nameIdByElement[sibling]].equals(name)) {
+                    position++;
+                }
+            }
+            steps.push(position > 1 ? name + "[" + position + "]" : name);
+        }
+        StringBuilder location = new StringBuilder();
+        for (String step : steps) {
+            location.append('/').append(step);
+        }
+        return location.toString();
+    }
+
+    /**
+     * Проверяет документ правилами валидации набора с ограничением количества ошибок по умолчанию.
+     * @param ruleSet набор правил.
+     * @return ошибки валидации; пустой список, если документ валиден.
+     */
+    public List<ValidationResult> validate(RuleSet ruleSet) {
+        return validate(ruleSet, XmlValidationLog.DEFAULT_MAX_ERRORS);
+    }
+
+    /**
+     * Проверяет документ правилами валидации набора, как {@link RuleSet#applyTo(XmlFile)} проверяет DOM:
+     * ошибки, их порядок и пути к тегам такие же. Правила трансформации учитываются без изменения дерева:
+     * проверка после переименования обрабатывает теги с новым именем, а теги внутри тега, текст которого
+     * перенесен правилом addNewTextNode, больше не проверяются. Теги, добавленные правилами, пустые
+     * и добавляются последними детьми, поэтому на остальные теги и пути к ним не влияют. Наборы, в которых
+     * проверяются добавленные теги или проверка идет после changeRootTag, не поддерживаются, как и в
+     * {@link XmlStreamValidator}.
+     * @param ruleSet набор правил.
+     * @param maxErrors количество ошибок, после которого проверка прекращается.
+     * @return ошибки валидации; пустой список, если документ валиден.
+     * @throws UnsupportedOperationException если результат валидации зависит от тегов, созданных правилами,
+     * или от переноса тегов правилом changeRootTag.
+     */
+    public List<ValidationResult> validate(RuleSet ruleSet, int maxErrors) {
+        XmlStreamValidator.checkSupported(ruleSet.getDefinitions());
+        XmlValidationLog validationLog = new XmlValidationLog();
+        validationLog.setMaxErrors(maxErrors);
+        //текущее имя тегов по номеру исходного имени
+        String[] currentNames = names.clone();
+        //теги, удаленные правилами addNewTextNode
+        boolean[] removed = new boolean[elementCount];
+        for (RuleDefinition rule : ruleSet.getDefinitions()) {
+            if (validationLog.isLimitReached()) {
+                break;
+            }
+            String targetNodeName = rule.getTargetNodeName();
+            switch (rule.getKind()) {
+                case CHANGE_NODE_NAME:
+                    for (int nameId = 0; nameId < currentNames.length; nameId++) {
+                        if (currentNames[nameId].equals(targetNodeName)) {
+                            currentNames[nameId] = rule.getArgument();
+                        }
+                    }
+                    break;
+                case ADD_NEW_TEXT_NODE:
+                    removeContent(currentNames, targetNodeName, removed);
+                    break;
+                case TYPE_VALIDATION:
+                    validateType(currentNames, removed, targetNodeName, PatternCache.get(rule.getArgument()),
+                            validationLog);
+                    break;
+                case CROSS_VALIDATION:
+                    validateCross(currentNames, removed, targetNodeName, rule.getArgument(), validationLog);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return validationLog.isValid() ? Collections.<ValidationResult>emptyList() : validationLog.getResults();
+    }
+
+    /**
+     * Удаляет вложенные теги всех тегов nodeName, как addNewTextNode: их текст переносится в новый тег,
+     * а сами они из документа исчезают.
+     */
+    private void removeContent(String[] currentNames, String nodeName, boolean[] removed) {
+        boolean[] matching = namesEqualTo(currentNames, nodeName);
+        int element = 0;
+        while (element < elementCount) {
+            if (removed[element] || !matching[nameIdByElement[element]]) {
+                element++;
+                continue;
+            }
+            //вложенные теги идут подряд сразу после тега
+            int end = subtreeEnd(element);
+            Arrays.fill(removed, element + 1, end, true);
+            element = end;
+        }
+    }
+
+    /**
+     * @return номер первого тега после тега element и всех вложенных в него.
+     */
+    private int subtreeEnd(int element) {
+        for (int current = element; current >= 0; current = parents[current]) {
+            if (nextSiblings[current] >= 0) {
+                return nextSiblings[current];
+            }
+        }
+        return elementCount;
+    }
+
+    private void validateType(String[] currentNames, boolean[] removed, String nodeName, Pattern pattern,
+                              XmlValidationLog validationLog) {
+        boolean[] matching = namesEqualTo(currentNames, nodeName);
+        for (int element = 0; element < elementCount && !validationLog.isLimitReached(); element++) {
+            if (matching[nameIdByElement[element]] && !removed[element]) {
+                String text = getTextContent(element);
+                if (!pattern.matcher(text).matches()) {
+                    validationLog.addResult(new ValidationResult(XmlFile.ValidationError.TYPE_ERROR,
+                            nodeName, null, location(element, currentNames), text));
+                }
+            }
+        }
+    }
+
+    private void validateCross(String[] currentNames, boolean[] removed, String nodeName, String fromNodeName,
+                               XmlValidationLog validationLog) {
+        boolean[] fromMatching = namesEqualTo(currentNames, fromNodeName);
+        String textToFound = null;
+        for (int element = 0; element < elementCount; element++) {
+            if (fromMatching[nameIdByElement[element]] && !removed[element]) {
+                textToFound = getTextContent(element);
+                break;
+            }
+        }
+        boolean[] matching = namesEqualTo(currentNames, nodeName);
+        for (int element = 0; element < elementCount && !validationLog.isLimitReached(); element++) {
+            if (matching[nameIdByElement[element]] && !removed[element]) {
+                String text = getTextContent(element);
+                if (textToFound == null || !text.contains(textToFound)) {
+                    validationLog.addResult(new ValidationResult(XmlFile.ValidationError.CROSS_VALIDATION_ERROR,
+                            nodeName, fromNodeName, location(element, currentNames), text));
+                }
+            }
+        }
+    }
+
+    private static boolean[] namesEqualTo(String[] currentNames, String name) {
+        boolean[] matching = new boolean[currentNames.length];
+        for (int nameId = 0; nameId < currentNames.length; nameId++) {
+            matching[nameId] = currentNames[nameId].equals(name);
+        }
+        return matching;
+    }
+
+    /**
+     * Построение дерева по событиям StAX.
+     */
+    private static class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIds = new HashMap<>();
+        private int elementCount;
+        private int[] nameIdByElement = new int[1024];
+        private int[] parents = new int[1024];
+        private int[] nextSiblings = new int[1024];
+        private long[] textStarts = new long[1024];
+        private long[] textEnds = new long[1024];
+
+        /**
+         * Открытые теги и последний ребенок каждого из них.
+         */
+        private int[] openElements = new int[64];
+        private int[] lastChildren = new int[64];
+        private int depth;
+
+        private final List<ByteBuffer> textChunks = new ArrayList<>();
+        private long textLength;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer encoded = ByteBuffer.allocate(8192);
+        /**
+         * Размер первого буфера текста.
+         */
+        private final int firstChunkSize;
+
+        /**
+         * @param sizeHint размер источника в байтах или -1, если он неизвестен. Текст документа в UTF-8
+         * обычно не больше самого документа, поэтому первый буфер сразу получает этот размер.
+         */
+        private Builder(long sizeHint) {
+            firstChunkSize = (int) Math.max(INITIAL_TEXT_CHUNK_SIZE, Math.min(TEXT_CHUNK_SIZE, sizeHint));
+        }
+
+        private CompactDocument build(XMLStreamReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String prefix = reader.getPrefix();
+                        startElement(prefix == null || prefix.isEmpty()
+                                ? reader.getLocalName() : prefix + ":" + reader.getLocalName());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        textEnds[openElements[depth]] = textLength;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        //пробелы вне корневого тега в текст не входят
+                        if (depth > 0) {
+                            appendText(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return new CompactDocument(this);
+        }
+
+        private void startElement(String name) {
+            Integer nameId = nameIds.get(name);
+            if (nameId == null) {
+                nameId = names.size();
+                names.add(name);
+                nameIds.put(name, nameId);
+            }
+            if (elementCount == nameIdByElement.length) {
+                int capacity = elementCount + (elementCount >> 1);
+                nameIdByElement = Arrays.copyOf(nameIdByElement, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+                textStarts = Arrays.copyOf(textStarts, capacity);
+                textEnds = Arrays.copyOf(textEnds, capacity);
+            }
+            if (depth == openElements.length) {
+                openElements = Arrays.copyOf(openElements, depth * 2);
+                lastChildren = Arrays.copyOf(lastChildren, depth * 2);
+            }
+            int element = elementCount++;
+            nameIdByElement[element] = nameId;
+            parents[element] = depth > 0 ? openElements[depth - 1] : -1;
+            nextSiblings[element] = -1;
+            textStarts[element] = textLength;
+            if (depth > 0) {
+                if (lastChildren[depth - 1] >= 0) {
+                    nextSiblings[lastChildren[depth - 1]] = element;
+                }
+                lastChildren[depth - 1] = element;
+            }
+            openElements[depth] = element;
+            lastChildren[depth] = -1;
+            depth++;
+        }
+
+        /**
+         * Кодирует текст в UTF-8 во временный буфер и копирует его в конец буферов текста.
+         */
+        private void appendText(char[] characters, int start, int length) {
+            //в UTF-8 символ занимает не больше 3 байт, суррогатная пара - 4 байта на 2 символа
+            if (encoded.capacity() < length * 3) {
+                encoded = ByteBuffer.allocate(length * 3);
+            }
+            encoded.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(characters, start, length), encoded, true);
+            encoder.flush(encoded);
+            encoded.flip();
+            while (encoded.hasRemaining()) {
+                ByteBuffer chunk = writableChunk();
+                int count = Math.min(encoded.remaining(), chunk.remaining());
+                ByteBuffer part = encoded.duplicate();
+                part.limit(part.position() + count);
+                chunk.put(part);
+                encoded.position(encoded.position() + count);
+                textLength += count;
+            }
+        }
+
+        /**
+         * Буфер, в который пишется следующий байт текста. Первый буфер растет от размера источника или от
+         * маленького размера, чтобы маленький документ не занимал {@link #TEXT_CHUNK_SIZE} байт, остальные
+         * имеют полный размер. Замененный при росте буфер освобождается сразу.
+         */
+        private ByteBuffer writableChunk() {
+            int chunkIndex = (int) (textLength / TEXT_CHUNK_SIZE);
+            int offset = (int) (textLength % TEXT_CHUNK_SIZE);
+            if (chunkIndex == textChunks.size()) {
+                textChunks.add(ByteBuffer.allocateDirect(chunkIndex == 0 ? firstChunkSize : TEXT_CHUNK_SIZE));
+            }
+            ByteBuffer chunk = textChunks.get(chunkIndex);
+            if (offset == chunk.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(TEXT_CHUNK_SIZE, chunk.capacity() * 2));
+                chunk.flip();
+                larger.put(chunk);
+                textChunks.set(chunkIndex, larger);
+                DirectBuffers.release(chunk);
+                chunk = larger;
+            }
+            chunk.position(offset);
+            return chunk;
+        }
+    }
+
+    /**
+     * Освобождение буферов вне кучи без сборщика мусора через {@code sun.misc.Unsafe.invokeCleaner}, который
+     * есть начиная с Java 9. На Java 8 буферы по-прежнему освобождает сборщик мусора.
+     */
+    private static final class DirectBuffers {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private DirectBuffers() {
+            //empty
+        }
+
+        private static void release(ByteBuffer buffer) {
+            if (INVOKE_CLEANER == null || !buffer.isDirect()) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                //буфер освободит сборщик мусора
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.company;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Хранилище описаний тегов {@link DbEntity}. Описания сгруппированы по типу формы, у каждого типа формы есть
+ * версия, которая меняется при любом изменении его описаний.
+ */
+public interface DbEntityRepository {
+
+    /**
+     * Загружает описания тегов формы в порядке их id.
+     * @param formType тип формы.
+     * @return описания тегов; пустой список, если таких нет.
+     * @throws SQLException
+     */
+    List<DbEntity> findByFormType(String formType) throws SQLException;
+
+    /**
+     * Текущая версия описаний формы. Запрос должен быть дешевым: он выполняется при каждой проверке изменений.
+     * @param formType тип формы.
+     * @return версия; 0, если у формы нет описаний.
+     * @throws SQLException
+     */
+    long getVersion(String formType) throws SQLException;
+}
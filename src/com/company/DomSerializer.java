@@ -0,0 +1,210 @@
+package com.company;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Быстрая запись DOM-документа: обходит дерево напрямую и пишет его в {@link Writer}, без конвейера
+ * Transformer. Символы, которые нельзя представить в выбранной кодировке, пишутся ссылками вида {@code &#x...;}.
+ */
+final class DomSerializer {
+
+    private final Writer writer;
+    private final OutputOptions options;
+
+    /**
+     * Кодировщик для проверки символов или null, если кодировка представляет любые символы.
+     */
+    private final CharsetEncoder encoder;
+
+    private DomSerializer(Writer writer, OutputOptions options, Charset charset) {
+        this.writer = writer;
+        this.options = options;
+        this.encoder = charset == null || charset.equals(StandardCharsets.UTF_8)
+                || charset.name().startsWith("UTF-") ? null : charset.newEncoder();
+    }
+
+    /**
+     * Записывает документ. Writer не закрывается и не сбрасывается.
+     * @param document документ.
+     * @param writer приемник текста.
+     * @param options параметры записи.
+     * @param charset кодировка, в которую будет преобразован текст, или null, если текст пишется как есть.
+     * @throws IOException
+     */
+    static void write(Document document, Writer writer, OutputOptions options, Charset charset)
+            throws IOException {
+        DomSerializer serializer = new DomSerializer(writer, options, charset);
+        if (!options.isOmitXmlDeclaration()) {
+            writer.write("<?xml version=\"1.0\" encoding=\"");
+            writer.write(options.getEncoding());
+            writer.write("\"?>");
+            if (options.isIndent()) {
+                writer.write('\n');
+            }
+        }
+        for (Node child = document.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                serializer.writeNode(child, 0);
+                if (options.isIndent()) {
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    private void writeNode(Node node, int depth) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement(node, depth);
+                break;
+            case Node.TEXT_NODE:
+                writeEscaped(node.getNodeValue(), false);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.write("<![CDATA[");
+                writer.write(node.getNodeValue().replace("]]>", "]]]]><![CDATA[>"));
+                writer.write("]]>");
+                break;
+            case Node.COMMENT_NODE:
+                writer.write("<!--");
+                writer.write(node.getNodeValue());
+                writer.write("-->");
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writer.write("<?");
+                writer.write(node.getNodeName());
+                String data = node.getNodeValue();
+                if (data != null && !data.isEmpty()) {
+                    writer.write(' ');
+                    writer.write(data);
+                }
+                writer.write("?>");
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    writeNode(child, depth);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeElement(Node element, int depth) throws IOException {
+        writer.write('<');
+        writer.write(element.getNodeName());
+        NamedNodeMap attributes = element.getAttributes();
+        for (int index = 0; index < attributes.getLength(); index++) {
+            Attr attribute = (Attr) attributes.item(index);
+            writer.write(' ');
+            writer.write(attribute.getName());
+            writer.write("=\"");
+            writeEscaped(attribute.getValue(), true);
+            writer.write('"');
+        }
+        if (!element.hasChildNodes()) {
+            writer.write("/>");
+            return;
+        }
+        writer.write('>');
+        boolean indentChildren = options.isIndent() && hasOnlyElementContent(element);
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (indentChildren) {
+                if (child.getNodeType() == Node.TEXT_NODE) {
+                    continue;
+                }
+                newLine(depth + 1);
+            }
+            writeNode(child, depth + 1);
+        }
+        if (indentChildren) {
+            newLine(depth);
+        }
+        writer.write("</");
+        writer.write(element.getNodeName());
+        writer.write('>');
+    }
+
+    /**
+     * Содержит ли элемент только теги и пробельный текст. Только такие элементы можно форматировать отступами,
+     * не меняя текст документа.
+     */
+    private static boolean hasOnlyElementContent(Node element) {
+        boolean hasElements = false;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                if (!child.getNodeValue().trim().isEmpty()) {
+                    return false;
+                }
+            } else if (child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                return false;
+            } else {
+                hasElements = true;
+            }
+        }
+        return hasElements;
+    }
+
+    private void newLine(int depth) throws IOException {
+        writer.write('\n');
+        for (int index = depth * options.getIndentAmount(); index > 0; index--) {
+            writer.write(' ');
+        }
+    }
+
+    private void writeEscaped(String text, boolean attribute) throws IOException {
+        int start = 0;
+        for (int index = 0; index < text.length(); index++) {
+            char symbol = text.charAt(index);
+            String replacement;
+            switch (symbol) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = attribute ? "&quot;" : null;
+                    break;
+                case '\n':
+                    replacement = attribute ? "&#10;" : null;
+                    break;
+                case '\r':
+                    replacement = "&#13;";
+                    break;
+                case '\t':
+                    replacement = attribute ? "&#9;" : null;
+                    break;
+                default:
+                    replacement = symbol > 127 && encoder != null && !encoder.canEncode(symbol)
+                            ? characterReference(text, index) : null;
+            }
+            if (replacement != null) {
+                writer.write(text, start, index - start);
+                writer.write(replacement);
+                if (Character.isHighSurrogate(symbol) && index + 1 < text.length()) {
+                    index++;
+                }
+                start = index + 1;
+            }
+        }
+        writer.write(text, start, text.length() - start);
+    }
+
+    private static String characterReference(String text, int index) {
+        return "&#x" + Integer.toHexString(text.codePointAt(index)) + ";";
+    }
+}
@@ -0,0 +1,85 @@
+package com.company;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Открытые теги потокового прохода по документу: исходные имена от корня и количество уже встреченных детей
+ * каждого имени. По ним строится путь к тегу, такой же, как {@link XmlFile.AbstractRunnableRule#locationOf(
+ * org.w3c.dom.Node)} при выполнении правил по одному.
+ */
+final class ElementPath {
+
+    private String[] names = new String[16];
+    /**
+     * Количество детей тега по исходным именам. Таблицы уровней переиспользуются.
+     */
+    private Map<String, Integer>[] childCounts = newChildCounts(16);
+    private int depth;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, Integer>[] newChildCounts(int length) {
+        return new Map[length];
+    }
+
+    /**
+     * Открывает тег.
+     * @param sourceName имя тега в исходном документе.
+     */
+    void push(String sourceName) {
+        if (depth == names.length) {
+            names = Arrays.copyOf(names, depth * 2);
+            childCounts = Arrays.copyOf(childCounts, depth * 2);
+        }
+        if (depth > 0) {
+            Map<String, Integer> siblings = childCounts[depth - 1];
+            Integer count = siblings.get(sourceName);
+            siblings.put(sourceName, count == null ? 1 : count + 1);
+        }
+        names[depth] = sourceName;
+        if (childCounts[depth] == null) {
+            childCounts[depth] = new HashMap<>();
+        } else {
+            childCounts[depth].clear();
+        }
+        depth++;
+    }
+
+    /**
+     * Закрывает последний открытый тег.
+     */
+    void pop() {
+        depth--;
+    }
+
+    /**
+     * Путь к последнему открытому тегу. Имена тегов и номера среди одноименных соседей берутся такими,
+     * какими они были бы перед выполнением правила ruleIndex, если бы правила выполнялись по одному.
+     * @param rules правила в порядке выполнения.
+     * @param ruleIndex номер правила, которое проверяет тег.
+     * @return путь вида {@code /root/Document/item[2]}.
+     */
+    String location(List<RuleDefinition> rules, int ruleIndex) {
+        StringBuilder location = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            String name = RuleDefinition.nameBefore(rules, names[level], ruleIndex);
+            int position = 1;
+            if (level > 0) {
+                //тег уже посчитан среди детей родителя, следующие соседи еще не встречались
+                position = 0;
+                for (Map.Entry<String, Integer> sibling : childCounts[level - 1].entrySet()) {
+                    if (RuleDefinition.nameBefore(rules, sibling.getKey(), ruleIndex).equals(name)) {
+                        position += sibling.getValue();
+                    }
+                }
+            }
+            location.append('/').append(name);
+            if (position > 1) {
+                location.append('[').append(position).append(']');
+            }
+        }
+        return location.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package com.company;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Скомпилированный {@link RuleCompiler} список правил: без дублей, с проверками перед изменениями документа
+ * и с переименованием и оборачиванием одного тега рядом. План не зависит от документа, поэтому его можно
+ * сохранить и при запуске сервиса загрузить вместо повторной компиляции, см. {@link #writeTo(OutputStream)}.
+ */
+public final class ExecutionPlan implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Метка формата {@link #writeTo(OutputStream)}: "XRP" и номер версии формата.
+     */
+    private static final int FORMAT = 0x58525001;
+
+    private final List<RuleDefinition> definitions;
+    private final int sourceRuleCount;
+
+    ExecutionPlan(List<RuleDefinition> definitions, int sourceRuleCount) {
+        this.definitions = Collections.unmodifiableList(new ArrayList<>(definitions));
+        this.sourceRuleCount = sourceRuleCount;
+    }
+
+    List<RuleDefinition> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * Количество правил в плане.
+     */
+    public int getRuleCount() {
+        return definitions.size();
+    }
+
+    /**
+     * Количество правил в описании до компиляции.
+     */
+    public int getSourceRuleCount() {
+        return sourceRuleCount;
+    }
+
+    /**
+     * Записывает план в компактном двоичном виде. Поток не закрывается.
+     * @param outputStream поток для записи.
+     * @throws IOException
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeInt(FORMAT);
+        output.writeInt(sourceRuleCount);
+        output.writeInt(definitions.size());
+        for (RuleDefinition definition : definitions) {
+            output.writeByte(definition.getKind().ordinal());
+            output.writeUTF(definition.getTargetNodeName());
+            output.writeUTF(definition.getArgument());
+        }
+        output.flush();
+    }
+
+    /**
+     * Читает план, записанный {@link #writeTo(OutputStream)}. Поток не закрывается.
+     * @param inputStream поток с планом.
+     * @return план.
+     * @throws IOException если данные повреждены или записаны в другом формате.
+     */
+    public static ExecutionPlan readFrom(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        if (input.readInt() != FORMAT) {
+            throw new IOException("Неизвестный формат плана выполнения правил.");
+        }
+        int sourceRuleCount = input.readInt();
+        int size = input.readInt();
+        if (size < 0) {
+            throw new IOException("Поврежден план выполнения правил.");
+        }
+        RuleDefinition.Kind[] kinds = RuleDefinition.Kind.values();
+        List<RuleDefinition> definitions = new ArrayList<>(Math.min(size, 1024));
+        for (int index = 0; index < size; index++) {
+            int kind = input.readUnsignedByte();
+            if (kind >= kinds.length) {
+                throw new IOException("Поврежден план выполнения правил.");
+            }
+            definitions.add(new RuleDefinition(kinds[kind], input.readUTF(), input.readUTF()));
+        }
+        return new ExecutionPlan(definitions, sourceRuleCount);
+    }
+
+    private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+        inputStream.defaultReadObject();
+        if (definitions == null) {
+            throw new InvalidObjectException("План выполнения правил без правил.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder temp = new StringBuilder();
+        for (RuleDefinition definition : definitions) {
+            temp.append(definition).append("\n");
+        }
+        return temp.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.company;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Хранилище описаний тегов в базе данных. Ожидаемая схема:
+ * <pre>
+ * CREATE TABLE db_entity (
+ *     id           INT PRIMARY KEY,
+ *     form_type    VARCHAR(64)  NOT NULL,
+ *     name         VARCHAR(255) NOT NULL,
+ *     changes_name VARCHAR(255),
+ *     parent_tag   VARCHAR(255),
+ *     child_tag    VARCHAR(255),
+ *     pattern_type VARCHAR(1024)
+ * );
+ * CREATE TABLE db_entity_version (
+ *     form_type VARCHAR(64) PRIMARY KEY,
+ *     version   BIGINT NOT NULL
+ * );
+ * </pre>
+ * Версию формы увеличивает тот, кто меняет её описания в db_entity (в той же транзакции или триггером).
+ */
+public class JdbcDbEntityRepository implements DbEntityRepository {
+
+    private static final String SELECT_ENTITIES = "SELECT id, name, changes_name, parent_tag, child_tag, pattern_type"
+            + " FROM db_entity WHERE form_type = ? ORDER BY id";
+    private static final String SELECT_VERSION = "SELECT version FROM db_entity_version WHERE form_type = ?";
+
+    private final DataSource dataSource;
+
+    /**
+     * Конструктор.
+     * @param dataSource источник соединений с базой данных.
+     */
+    public JdbcDbEntityRepository(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public List<DbEntity> findByFormType(String formType) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_ENTITIES)) {
+            statement.setString(1, formType);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                List<DbEntity> dbEntityList = new ArrayList<>();
+                while (resultSet.next()) {
+                    dbEntityList.add(new DbEntity()
+                            .setId(resultSet.getInt("id"))
+                            .setName(resultSet.getString("name"))
+                            .setChangesName(resultSet.getString("changes_name"))
+                            .setParentTag(resultSet.getString("parent_tag"))
+                            .setChildTag(resultSet.getString("child_tag"))
+                            .setPatternType(resultSet.getString("pattern_type")));
+                }
+                return dbEntityList;
+            }
+        }
+    }
+
+    @Override
+    public long getVersion(String formType) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_VERSION)) {
+            statement.setString(1, formType);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+}
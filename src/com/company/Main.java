@@ -1,14 +1,31 @@
 package com.company;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class Main {
 
     private static final String FILE_PATH_75_2 = "C:\\";
 
     public static void main(String[] args) {
+        /* режим сервиса: Main --serve [порт] [количество потоков] [адрес], по умолчанию только localhost */
+        if(args.length > 0 && "--serve".equals(args[0])) {
+            serve(args);
+            return;
+        }
+
+        /* пакетный режим: Main <каталог или маска> [каталог для результата] [количество потоков или virtual] */
+        if(args.length > 0) {
+            processBatch(args);
+            return;
+        }
+
         /* иницилизация класса для обработки и валидации загруженного XML-файла */
         File file = new File(FILE_PATH_75_2);
         XmlFile xmlFile = null;
@@ -25,64 +42,120 @@ public class Main {
         }
 
 
-        /* Иницилизация тестовых элементов, которые будут загружаться из базы данных */
+        /* Загрузка описаний тегов */
+        List<DbEntity> dbEntityList = loadDbEntities();
+
+        /* Составление правил трансформации и валидации документа */
+
+        RuleSet ruleSet = RuleSet.fromDbEntities(dbEntityList);
+
+        /* Применение всех правил валидации и трансфорамции*/
+
+        ruleSet.applyTo(xmlFile);
+
+        /* Вывод в консоль изменненго документа и лога, если в логе есть записи */
+
+        try {
+            xmlFile.write();
+            if(!xmlFile.isValid()) {
+                System.out.println();
+                System.out.println(xmlFile.getValidationLog());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Иницилизация тестовых элементов, которые будут загружаться из базы данных.
+     */
+    private static List<DbEntity> loadDbEntities() {
         DbEntity root = new DbEntity().setId(1).setName("root").setChangesName(null).setParentTag(null).setChildTag(null).setPatternType(null);
         DbEntity document = new DbEntity().setId(2).setName("Document").setChangesName("Form").setParentTag(null).setChildTag(null).setPatternType(null);
         DbEntity powerFacilitiesVid = new DbEntity().setId(3).setName("powerFacilitiesVid").setChangesName("powerFacility").setParentTag(null).setChildTag("vid").setPatternType("^\\d+$");
         DbEntity periodID = new DbEntity().setId(4).setName("periodId").setChangesName(null).setParentTag(null).setChildTag(null).setPatternType("^\\d+$");
         DbEntity subdocuments = new DbEntity().setId(5).setName("subdocuments").setChangesName(null).setParentTag("item").setChildTag("BeanList").setPatternType(null);
 
-        List<DbEntity> dbEntityList  = new ArrayList<>();
+        List<DbEntity> dbEntityList = new ArrayList<>();
         dbEntityList.add(root);
         dbEntityList.add(document);
         dbEntityList.add(powerFacilitiesVid);
         dbEntityList.add(periodID);
         dbEntityList.add(subdocuments);
+        return dbEntityList;
+    }
 
-
-        /* Составление правил трансформации и валидации документа */
-
-        List<XmlFile.Rules> rulesList = new ArrayList<>();
-        for(DbEntity dbEntity : dbEntityList) {
-            //сначала правила валидации
-            if(dbEntity.patternType != null) {
-                xmlFile.typeValidation(dbEntity.name, dbEntity.patternType);
-            }
-            //добавление новых тегов
-            if(dbEntity.childTag != null) {
-                //если тег содержит внутри себя другой тег, который нужно перенести в новый тег, то
-                //в parentTag пишем его значение
-                if(dbEntity.parentTag != null) {
-                    xmlFile.addNewNode(dbEntity.name, dbEntity.childTag);
-                    xmlFile.changeRootTag(dbEntity.parentTag, dbEntity.childTag);
-                } else {
-                //если тег содержит только текст, то просто переносим его
-                    xmlFile.addNewTextNode(dbEntity.name, dbEntity.childTag);
+    /**
+     * Пакетная обработка всех xml-файлов каталога с выводом итога по каждому файлу.
+     */
+    private static void processBatch(String[] args) {
+        File outputDirectory = args.length > 1 ? new File(args[1]) : null;
+        ExecutorService executor;
+        if(args.length < 3) {
+            executor = XmlBatchProcessor.newPlatformExecutor(Runtime.getRuntime().availableProcessors());
+        } else if("virtual".equals(args[2])) {
+            executor = XmlBatchProcessor.newVirtualThreadExecutor();
+        } else {
+            executor = XmlBatchProcessor.newPlatformExecutor(Integer.parseInt(args[2]));
+        }
+        try {
+            List<File> files = XmlBatchProcessor.listFiles(args[0]);
+            XmlBatchProcessor processor = new XmlBatchProcessor(RuleSet.fromDbEntities(loadDbEntities()),
+                    executor, Runtime.getRuntime().availableProcessors() * 2);
+            int invalid = 0;
+            for (XmlBatchProcessor.Result result : processor.process(files, outputDirectory)) {
+                System.out.println(result);
+                if (!result.isValid()) {
+                    invalid++;
+                    if (result.getValidationLog() != null) {
+                        System.out.print(result.getValidationLog());
+                    }
                 }
             }
-            //изменяем имя тега
-            if(dbEntity.changesName != null) {
-                xmlFile.changeNodeName(dbEntity.name, dbEntity.changesName);
-            }
-        }
-
-        /* Применение всех правил валидации и трансфорамции*/
-
-        for(XmlFile.Rules rule : rulesList) {
-            rule.runRule();
+            System.out.println("Обработано файлов: " + files.size() + ", с ошибками: " + invalid);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
         }
+    }
 
-        /* Вывод в консоль изменненго документа и лога, если в логе есть записи */
-
+    /**
+     * Запуск http-сервиса с набором правил default, построенным по описаниям тегов. Сервис слушает только
+     * localhost, если адрес, например 0.0.0.0, не указан явно.
+     */
+    private static void serve(String[] args) {
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        InetSocketAddress address;
         try {
-            xmlFile.write();
-            if(!xmlFile.isValid()) {
-                System.out.println();
-                System.out.println(xmlFile.getValidationLog());
+            address = args.length > 3
+                    ? new InetSocketAddress(InetAddress.getByName(args[3]), port)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            return;
+        }
+        final RuleSet ruleSet = RuleSet.fromDbEntities(loadDbEntities());
+        final XmlTransformServer server = new XmlTransformServer(new XmlTransformServer.RuleSetResolver() {
+            @Override
+            public RuleSet resolve(String ruleSetId) {
+                return "default".equals(ruleSetId) ? ruleSet : null;
             }
-        } catch (Exception e) {
+        }, threads);
+        try {
+            server.start(address);
+        } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.close();
+            }
+        }));
+        System.out.println("Сервис запущен на " + address.getAddress().getHostAddress() + ":" + server.getPort()
+                + ": POST /transform/default, POST /validate/default");
     }
-
 }
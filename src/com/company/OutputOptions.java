@@ -0,0 +1,75 @@
+package com.company;
+
+/**
+ * Параметры записи xml-документа.
+ */
+public class OutputOptions {
+
+    private boolean indent;
+    private int indentAmount = 4;
+    private String encoding = "UTF-8";
+    private boolean omitXmlDeclaration;
+    private boolean fastSerializer;
+
+    public OutputOptions() {
+        //empty
+    }
+
+    /**
+     * Добавлять ли переносы строк и отступы между тегами.
+     */
+    public OutputOptions setIndent(boolean indent) {
+        this.indent = indent;
+        return this;
+    }
+
+    /**
+     * Количество пробелов в одном уровне отступа.
+     */
+    public OutputOptions setIndentAmount(int indentAmount) {
+        this.indentAmount = indentAmount;
+        return this;
+    }
+
+    /**
+     * Кодировка байтового вывода. Для {@link java.io.Writer} указывается только в xml-декларации.
+     */
+    public OutputOptions setEncoding(String encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    public OutputOptions setOmitXmlDeclaration(boolean omitXmlDeclaration) {
+        this.omitXmlDeclaration = omitXmlDeclaration;
+        return this;
+    }
+
+    /**
+     * Писать документ собственным сериализатором, обходящим DOM напрямую, вместо Transformer.
+     * Он быстрее, но не переносит DOCTYPE.
+     */
+    public OutputOptions setFastSerializer(boolean fastSerializer) {
+        this.fastSerializer = fastSerializer;
+        return this;
+    }
+
+    public boolean isIndent() {
+        return indent;
+    }
+
+    public int getIndentAmount() {
+        return indentAmount;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public boolean isOmitXmlDeclaration() {
+        return omitXmlDeclaration;
+    }
+
+    public boolean isFastSerializer() {
+        return fastSerializer;
+    }
+}
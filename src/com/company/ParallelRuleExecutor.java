@@ -0,0 +1,599 @@
+package com.company;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Параллельное выполнение набора правил над одним большим документом, состоящим из множества независимых
+ * поддеревьев, например тегов item внутри subdocuments.
+ * <p>
+ * Подряд идущие локальные правила выполняются так: все самые внешние теги splitTagName отделяются от документа
+ * (на их месте остаются метки), переносятся каждый в свой {@link Document} и обрабатываются параллельно
+ * в {@link ForkJoinPool}; остаток документа обрабатывается как еще одна часть. Затем поддеревья возвращаются
+ * на места меток в исходном порядке, а ошибки валидации частей переносятся в лог документа в том же порядке
+ * и с теми же путями, что и при выполнении правил по одному. Ограничение количества ошибок документа общее
+ * для всех частей.
+ * <p>
+ * Нелокальные правила (changeRootTag, crossValidation) затрагивают несколько поддеревьев сразу и выполняются
+ * последовательно над целым документом. Последовательно выполняются и локальные правила, если среди них есть
+ * проверка или замена содержимого тега, внутри которого лежат поддеревья: такой тег должен видеть их целиком.
+ */
+public class ParallelRuleExecutor {
+
+    /**
+     * Группы правил в порядке выполнения.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    private final String splitTagName;
+    private final ForkJoinPool pool;
+
+    /**
+     * Конструктор, использующий общий пул {@link ForkJoinPool#commonPool()}.
+     * @param ruleSet набор правил.
+     * @param splitTagName имя тега, по которому документ делится на независимые части.
+     */
+    public ParallelRuleExecutor(RuleSet ruleSet, String splitTagName) {
+        this(ruleSet, splitTagName, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Конструктор.
+     * @param ruleSet набор правил.
+     * @param splitTagName имя тега, по которому документ делится на независимые части.
+     * @param pool пул для параллельной обработки частей.
+     */
+    public ParallelRuleExecutor(RuleSet ruleSet, String splitTagName, ForkJoinPool pool) {
+        this.splitTagName = splitTagName;
+        this.pool = pool;
+        Segment segment = null;
+        for (RuleDefinition definition : ruleSet.getDefinitions()) {
+            XmlFile.Rules rule = XmlFile.createRule(definition);
+            boolean local = rule instanceof XmlFile.AbstractRunnableRule
+                    && ((XmlFile.AbstractRunnableRule) rule).isLocal();
+            if (segment == null || segment.local != local) {
+                segment = new Segment(local);
+                segments.add(segment);
+            }
+            segment.add(definition);
+        }
+        for (Segment current : segments) {
+            current.plan = new RulePlan(current.definitions);
+        }
+    }
+
+    /**
+     * Применяет все правила к документу. Ошибки валидации пишутся в лог документа.
+     * @param xmlFile xml-документ.
+     */
+    public void execute(XmlFile xmlFile) {
+        //части обрабатываются разными потоками, поэтому слушатель получает только общее время правил
+        RuleListener ruleListener = xmlFile.getRuleListener();
+        xmlFile.setRuleListener(null);
+        long start = System.nanoTime();
+        try {
+            String splitName = splitTagName;
+            for (Segment segment : segments) {
+                if (segment.local) {
+                    executeLocal(segment, xmlFile, splitName);
+                } else {
+                    segment.plan.execute(xmlFile);
+                }
+                splitName = segment.renamedNodeName(splitName);
+            }
+        } finally {
+            xmlFile.setRuleListener(ruleListener);
+        }
+        if (ruleListener != null) {
+            ruleListener.rulesExecuted(System.nanoTime() - start, xmlFile.getLog().getErrorCount());
+        }
+    }
+
+    private void executeLocal(Segment segment, XmlFile xmlFile, String splitName) {
+        Document document = xmlFile.getDocument();
+        List<Node> splitNodes = new ArrayList<>();
+        Set<String> ancestorNames = new HashSet<>();
+        collectSplitNodes(document, splitName, splitNodes, ancestorNames);
+        if (splitNodes.size() < 2 || segment.readsContentOf(ancestorNames)) {
+            segment.plan.execute(xmlFile);
+            return;
+        }
+
+        //положения частей запоминаются до отделения первой из них: пути к ошибкам внутри частей
+        //строятся по документу, каким он был перед группой правил
+        Map<Node, Position> positionsByNode = new IdentityHashMap<>();
+        List<Position> positions = new ArrayList<>(splitNodes.size());
+        for (Node splitNode : splitNodes) {
+            positions.add(positionOf(splitNode, positionsByNode));
+        }
+
+        XmlValidationLog validationLog = xmlFile.getLog();
+        ErrorBudget budget = new ErrorBudget(validationLog.getMaxErrors() - validationLog.getResults().size());
+        //документ меняется только в этом потоке: части отделяются и возвращаются последовательно
+        Node[] placeholders = new Node[splitNodes.size()];
+        Map<Node, Integer> placeholderIndexes = new IdentityHashMap<>();
+        PartFile[] parts = new PartFile[splitNodes.size() + 1];
+        for (int index = 0; index < splitNodes.size(); index++) {
+            Node splitNode = splitNodes.get(index);
+            Node placeholder = document.createComment("");
+            splitNode.getParentNode().replaceChild(placeholder, splitNode);
+            Document partDocument = document.getImplementation().createDocument(null, null, null);
+            partDocument.appendChild(partDocument.adoptNode(splitNode));
+            placeholders[index] = placeholder;
+            placeholderIndexes.put(placeholder, index);
+            parts[index + 1] = new SubtreePart(partDocument, segment, index, positions.get(index));
+        }
+        parts[0] = new RestPart(document, segment, placeholderIndexes, splitName);
+        for (PartFile part : parts) {
+            part.setMaxValidationErrors(Math.max(1, budget.capacity));
+        }
+
+        Node[] partRoots = new Node[parts.length];
+        pool.invoke(new PartTask(segment.plan, parts, partRoots, budget, 0, parts.length,
+                Math.max(1, parts.length / (pool.getParallelism() * 8))));
+
+        for (int index = 0; index < placeholders.length; index++) {
+            Node placeholder = placeholders[index];
+            placeholder.getParentNode().replaceChild(document.adoptNode(partRoots[index + 1]), placeholder);
+        }
+
+        List<OrderedResult> results = budget.getResults();
+        for (OrderedResult result : results) {
+            validationLog.addResult(result.result);
+        }
+    }
+
+    /**
+     * Положение тега в документе. Положения всех элементов-детей родителя считаются за один проход
+     * по его детям: у родителя частей могут быть десятки тысяч детей.
+     * @param positionsByNode уже посчитанные положения.
+     */
+    private static Position positionOf(Node node, Map<Node, Position> positionsByNode) {
+        Position position = positionsByNode.get(node);
+        if (position != null) {
+            return position;
+        }
+        Node parentNode = node.getParentNode();
+        Position parent = parentNode.getNodeType() == Node.ELEMENT_NODE
+                ? positionOf(parentNode, positionsByNode) : null;
+        List<String> siblingNames = new ArrayList<>();
+        Map<String, Integer> nameIndexes = new HashMap<>();
+        int[] counts = new int[0];
+        for (Node child = parentNode.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String name = child.getNodeName();
+            positionsByNode.put(child, new Position(parent, name, siblingNames,
+                    Arrays.copyOf(counts, siblingNames.size())));
+            Integer nameIndex = nameIndexes.get(name);
+            if (nameIndex == null) {
+                nameIndex = siblingNames.size();
+                nameIndexes.put(name, nameIndex);
+                siblingNames.add(name);
+                counts = Arrays.copyOf(counts, siblingNames.size());
+            }
+            counts[nameIndex]++;
+        }
+        return positionsByNode.get(node);
+    }
+
+    /**
+     * Собирает в порядке документа самые внешние теги splitName и имена всех их предков.
+     */
+    private static void collectSplitNodes(Document document, String splitName, List<Node> splitNodes,
+                                          Set<String> ancestorNames) {
+        Node node = document.getDocumentElement();
+        while (node != null) {
+            boolean split = node.getNodeType() == Node.ELEMENT_NODE && node.getNodeName().equals(splitName);
+            if (split) {
+                splitNodes.add(node);
+                for (Node parent = node.getParentNode(); parent != null && parent != document;
+                     parent = parent.getParentNode()) {
+                    ancestorNames.add(parent.getNodeName());
+                }
+            } else if (node.getFirstChild() != null) {
+                node = node.getFirstChild();
+                continue;
+            }
+            while (node != null && node.getNextSibling() == null) {
+                node = node.getParentNode();
+                if (node == document) {
+                    return;
+                }
+            }
+            if (node != null) {
+                node = node.getNextSibling();
+            }
+        }
+    }
+
+    /**
+     * Подряд идущие правила, которые либо все локальные, либо все нелокальные.
+     */
+    private static class Segment {
+        private final boolean local;
+        private final List<RuleDefinition> definitions = new ArrayList<>();
+        private RulePlan plan;
+
+        private Segment(boolean local) {
+            this.local = local;
+        }
+
+        private void add(RuleDefinition definition) {
+            definitions.add(definition);
+        }
+
+        /**
+         * Имя, которое тег с именем nodeName на момент начала группы имеет перед правилом группы ruleIndex.
+         */
+        private String nameBefore(String nodeName, int ruleIndex) {
+            return RuleDefinition.nameBefore(definitions, nodeName, ruleIndex);
+        }
+
+        /**
+         * Имя, которое получит тег nodeName после всех переименований группы.
+         */
+        private String renamedNodeName(String nodeName) {
+            for (RuleDefinition definition : definitions) {
+                if (definition.getKind() == RuleDefinition.Kind.CHANGE_NODE_NAME
+                        && definition.getTargetNodeName().equals(nodeName)) {
+                    nodeName = definition.getArgument();
+                }
+            }
+            return nodeName;
+        }
+
+        /**
+         * Проверяет или заменяет ли группа содержимое одного из тегов, с учетом их переименований.
+         */
+        private boolean readsContentOf(Set<String> nodeNames) {
+            Set<String> names = new HashSet<>(nodeNames);
+            for (RuleDefinition definition : definitions) {
+                if (!names.contains(definition.getTargetNodeName())) {
+                    continue;
+                }
+                switch (definition.getKind()) {
+                    case CHANGE_NODE_NAME:
+                        names.add(definition.getArgument());
+                        break;
+                    case TYPE_VALIDATION:
+                    case ADD_NEW_TEXT_NODE:
+                        return true;
+                    default:
+                        break;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Положение тега в документе перед группой правил: исходное имя и количество предшествующих
+     * соседей-элементов по именам. По нему строится путь к тегу с именами на момент любого правила группы.
+     */
+    private static final class Position {
+        private final Position parent;
+        private final String name;
+        /**
+         * Различные имена детей родителя, общие для всех его детей.
+         */
+        private final List<String> siblingNames;
+        /**
+         * Количество предшествующих соседей с каждым именем из siblingNames; имен, которых еще не было, в массиве нет.
+         */
+        private final int[] precedingCounts;
+
+        private Position(Position parent, String name, List<String> siblingNames, int[] precedingCounts) {
+            this.parent = parent;
+            this.name = name;
+            this.siblingNames = siblingNames;
+            this.precedingCounts = precedingCounts;
+        }
+
+        /**
+         * Путь к тегу перед правилом группы ruleIndex, как при выполнении правил по одному.
+         */
+        private void appendLocation(StringBuilder location, Segment segment, int ruleIndex) {
+            if (parent != null) {
+                parent.appendLocation(location, segment, ruleIndex);
+            }
+            String nameBefore = segment.nameBefore(name, ruleIndex);
+            int number = 1;
+            for (int index = 0; index < precedingCounts.length; index++) {
+                if (segment.nameBefore(siblingNames.get(index), ruleIndex).equals(nameBefore)) {
+                    number += precedingCounts[index];
+                }
+            }
+            location.append('/').append(nameBefore);
+            if (number > 1) {
+                location.append('[').append(number).append(']');
+            }
+        }
+    }
+
+    /**
+     * Часть документа. Запоминает для каждой своей ошибки номер правила и место в документе, чтобы ошибки
+     * всех частей можно было расставить в порядке последовательного выполнения правил. Правила валидации
+     * в части выполняются только проходами {@link RulePlan}, поэтому номер правила всегда известен.
+     */
+    private abstract static class PartFile extends XmlFile {
+        final Segment segment;
+        final Map<ValidationResult, OrderedResult> orders = new IdentityHashMap<>();
+
+        private PartFile(Document document, Segment segment) {
+            super(document);
+            this.segment = segment;
+        }
+
+        @Override
+        ValidationResult validationResult(XmlFile.ValidationError error, Node node, String referenceTagName,
+                                          String text) {
+            int ruleIndex = getNodeNames().ruleIndex();
+            ValidationResult result = new ValidationResult(error, node.getNodeName(), referenceTagName,
+                    location(node, ruleIndex), text);
+            orders.put(result, new OrderedResult(result, ruleIndex, slotOf(node)));
+            return result;
+        }
+
+        /**
+         * Путь к ноде от корня всего документа.
+         */
+        abstract String location(Node node, int ruleIndex);
+
+        /**
+         * Место ноды среди частей: четное 2 * n, если нода лежит в остатке документа после n отделенных
+         * поддеревьев, и нечетное 2 * n + 1 для ноды внутри поддерева номер n.
+         */
+        abstract int slotOf(Node node);
+    }
+
+    /**
+     * Отделенное поддерево.
+     */
+    private static final class SubtreePart extends PartFile {
+        private final int index;
+        private final Position position;
+
+        private SubtreePart(Document document, Segment segment, int index, Position position) {
+            super(document, segment);
+            this.index = index;
+            this.position = position;
+        }
+
+        @Override
+        String location(Node node, int ruleIndex) {
+            //первый шаг пути внутри части - корень части, он заменяется путем к поддереву в документе
+            String partLocation = locationOf(node);
+            int rest = partLocation.indexOf('/', 1);
+            StringBuilder location = new StringBuilder();
+            position.appendLocation(location, segment, ruleIndex);
+            if (rest > 0) {
+                location.append(partLocation, rest, partLocation.length());
+            }
+            return location.toString();
+        }
+
+        @Override
+        int slotOf(Node node) {
+            return 2 * index + 1;
+        }
+    }
+
+    /**
+     * Остаток документа с метками на местах отделенных поддеревьев. Для путей метка считается тегом
+     * с именем поддерева.
+     */
+    private static final class RestPart extends PartFile {
+        private final Map<Node, Integer> placeholderIndexes;
+        private final String splitName;
+        /**
+         * Количество меток перед нодой для уже пройденных нод.
+         */
+        private final Map<Node, Integer> slots = new IdentityHashMap<>();
+
+        private RestPart(Document document, Segment segment, Map<Node, Integer> placeholderIndexes,
+                         String splitName) {
+            super(document, segment);
+            this.placeholderIndexes = placeholderIndexes;
+            this.splitName = splitName;
+        }
+
+        @Override
+        String location(Node node, int ruleIndex) {
+            XmlFile.NodeNames nodeNames = getNodeNames();
+            String placeholderName = segment.nameBefore(splitName, ruleIndex);
+            Deque<String> steps = new ArrayDeque<>();
+            for (Node current = node; current != null && current.getNodeType() == Node.ELEMENT_NODE;
+                 current = current.getParentNode()) {
+                String name = current == node ? current.getNodeName() : nodeNames.nameOf(current);
+                int position = 1;
+                for (Node sibling = current.getPreviousSibling(); sibling != null;
+                     sibling = sibling.getPreviousSibling()) {
+                    if (sibling.getNodeType() == Node.ELEMENT_NODE
+                            ? name.equals(nodeNames.nameOf(sibling))
+                            : placeholderIndexes.containsKey(sibling) && name.equals(placeholderName)) {
+                        position++;
+                    }
+                }
+                steps.push(position > 1 ? name + "[" + position + "]" : name);
+            }
+            StringBuilder location = new StringBuilder();
+            for (String step : steps) {
+                location.append('/').append(step);
+            }
+            return location.toString();
+        }
+
+        /**
+         * Идет от ноды назад по документу до ближайшей метки или уже пройденной ноды. У всех нод по пути
+         * количество меток перед ними одинаковое, поэтому каждая нода проходится один раз.
+         */
+        @Override
+        int slotOf(Node node) {
+            List<Node> visited = new ArrayList<>();
+            int slot = 0;
+            for (Node current = node; current != null && current.getNodeType() != Node.DOCUMENT_NODE;
+                 current = previousInDocument(current)) {
+                Integer known = slots.get(current);
+                if (known != null) {
+                    slot = known;
+                    break;
+                }
+                Integer placeholderIndex = placeholderIndexes.get(current);
+                if (placeholderIndex != null) {
+                    slot = placeholderIndex + 1;
+                    break;
+                }
+                visited.add(current);
+            }
+            for (Node current : visited) {
+                slots.put(current, slot);
+            }
+            return 2 * slot;
+        }
+
+        private static Node previousInDocument(Node node) {
+            Node previous = node.getPreviousSibling();
+            if (previous == null) {
+                return node.getParentNode();
+            }
+            while (previous.getLastChild() != null) {
+                previous = previous.getLastChild();
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Ошибка части с ее местом в порядке последовательного выполнения правил: по правилам,
+     * а внутри правила в порядке документа.
+     */
+    private static final class OrderedResult implements Comparable<OrderedResult> {
+        private final ValidationResult result;
+        private final int rule;
+        private final int slot;
+        /**
+         * Номер ошибки в логе части.
+         */
+        private int sequence;
+
+        private OrderedResult(ValidationResult result, int rule, int slot) {
+            this.result = result;
+            this.rule = rule;
+            this.slot = slot;
+        }
+
+        @Override
+        public int compareTo(OrderedResult other) {
+            if (rule != other.rule) {
+                return Integer.compare(rule, other.rule);
+            }
+            if (slot != other.slot) {
+                return Integer.compare(slot, other.slot);
+            }
+            return Integer.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Общее для всех частей ограничение количества ошибок: из ошибок всех частей остаются только первые
+     * в порядке последовательного выполнения правил, сколько еще помещается в лог документа.
+     */
+    private static final class ErrorBudget {
+        private final int capacity;
+        /**
+         * Оставленные ошибки; в голове последняя по порядку.
+         */
+        private final PriorityQueue<OrderedResult> kept = new PriorityQueue<>(11, Collections.reverseOrder());
+
+        private ErrorBudget(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Забирает ошибки обработанной части. Ошибки в логе части уже упорядочены, поэтому после первой
+         * не поместившейся остальные можно не смотреть.
+         */
+        private synchronized void take(PartFile part) {
+            List<ValidationResult> results = part.getLog().getResults();
+            for (int index = 0; index < results.size(); index++) {
+                OrderedResult result = part.orders.get(results.get(index));
+                result.sequence = index;
+                if (kept.size() < capacity) {
+                    kept.add(result);
+                } else if (capacity > 0 && result.compareTo(kept.peek()) < 0) {
+                    kept.poll();
+                    kept.add(result);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private synchronized List<OrderedResult> getResults() {
+            List<OrderedResult> results = new ArrayList<>(kept);
+            Collections.sort(results);
+            return results;
+        }
+    }
+
+    /**
+     * Обработка диапазона частей документа с делением пополам, пока диапазон больше порога.
+     * Обработанная часть сразу отдает ошибки в общее ограничение и больше не хранится.
+     */
+    private static class PartTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RulePlan plan;
+        private final PartFile[] parts;
+        private final Node[] partRoots;
+        private final ErrorBudget budget;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        private PartTask(RulePlan plan, PartFile[] parts, Node[] partRoots, ErrorBudget budget, int from, int to,
+                         int threshold) {
+            this.plan = plan;
+            this.parts = parts;
+            this.partRoots = partRoots;
+            this.budget = budget;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int index = from; index < to; index++) {
+                    PartFile part = parts[index];
+                    plan.execute(part);
+                    //корень части мог быть заменен правилом переименования
+                    partRoots[index] = part.getDocument().getDocumentElement();
+                    budget.take(part);
+                    parts[index] = null;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new PartTask(plan, parts, partRoots, budget, from, middle, threshold),
+                    new PartTask(plan, parts, partRoots, budget, middle, to, threshold));
+        }
+    }
+}
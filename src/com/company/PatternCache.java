@@ -0,0 +1,45 @@
+package com.company;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Общий кеш скомпилированных регулярных выражений для правил валидации.
+ * Ключ - строка паттерна, например {@link DbEntity#patternType}. Кеш ограничен по размеру,
+ * при переполнении вытесняется паттерн, который дольше всего не использовался.
+ */
+final class PatternCache {
+
+    /**
+     * Максимальное количество паттернов в кеше.
+     */
+    private static final int MAX_SIZE = 256;
+
+    private static final Map<String, Pattern> CACHE = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private PatternCache() {
+        //empty
+    }
+
+    /**
+     * Возвращает скомпилированный паттерн, компилируя его только при первом обращении.
+     * @param regex регулярное выражение.
+     * @return скомпилированный паттерн.
+     */
+    static Pattern get(String regex) {
+        synchronized (CACHE) {
+            Pattern pattern = CACHE.get(regex);
+            if (pattern == null) {
+                pattern = Pattern.compile(regex);
+                CACHE.put(regex, pattern);
+            }
+            return pattern;
+        }
+    }
+}
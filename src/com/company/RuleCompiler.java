@@ -0,0 +1,389 @@
+package com.company;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Компилятор правил из xml-описания в {@link ExecutionPlan}. Формат описания:
+ * <pre>
+ * &lt;rules&gt;
+ *     &lt;typeValidation target="periodId" pattern="^\d+$"/&gt;
+ *     &lt;crossValidation target="code" reference="inn"/&gt;
+ *     &lt;addNewTextNode target="powerFacilitiesVid" node="vid"/&gt;
+ *     &lt;addNewNode target="subdocuments" node="BeanList"/&gt;
+ *     &lt;changeRootTag target="item" parent="BeanList"/&gt;
+ *     &lt;changeNodeName target="Document" name="Form"/&gt;
+ *     &lt;entity name="periodId" changesName="period" patternType="^\d+$"/&gt;
+ * &lt;/rules&gt;
+ * </pre>
+ * Тег entity повторяет поля {@link DbEntity} и разворачивается в правила так же,
+ * как в {@link RuleSet#fromDbEntities(java.util.List)}.
+ * <p>
+ * При компиляции:
+ * <ul>
+ *     <li>описание проверяется целиком: неверные имена тегов и паттерны и переименование одного тега в разные
+ *     имена отклоняются с {@link IllegalArgumentException} со списком всех ошибок. Переименования выполняются
+ *     в порядке описания, поэтому цепочки вроде a -> b, b -> c, c -> a допустимы;</li>
+ *     <li>повторы проверок и переименований удаляются, если между повторами их теги никто не менял;</li>
+ *     <li>проверки переносятся перед изменениями документа, которые не затрагивают проверяемые теги.
+ *     Пути в ошибках таких проверок содержат имена тегов до переименования. Через changeRootTag и addNewTextNode
+ *     проверки не переносятся: эти правила меняют содержимое тегов, которые в них не названы;</li>
+ *     <li>переименование тега и его оборачивание (addNewNode, addNewTextNode) ставятся рядом, чтобы план
+ *     выполнил их за одно посещение ноды.</li>
+ * </ul>
+ */
+public final class RuleCompiler {
+
+    private static final Pattern NODE_NAME = Pattern.compile("[\\p{L}_:][\\p{L}\\p{N}_.:\\-]*");
+
+    private RuleCompiler() {
+        //empty
+    }
+
+    /**
+     * Компилирует xml-описание правил.
+     * @param spec источник описания.
+     * @return план выполнения.
+     * @throws IOException
+     * @throws SAXException
+     * @throws ParserConfigurationException
+     * @throws IllegalArgumentException если описание содержит ошибки или конфликтующие правила.
+     */
+    public static ExecutionPlan compile(XmlInput spec) throws IOException, SAXException, ParserConfigurationException {
+        Document document;
+        try (InputStream inputStream = spec.openStream()) {
+            document = XmlFactories.documentBuilder().parse(inputStream);
+        }
+        RuleSet.Builder builder = new RuleSet.Builder();
+        List<String> errors = new ArrayList<>();
+        for (Node node = document.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                addRule(builder, (Element) node, errors);
+            }
+        }
+        return compile(builder.getDefinitions(), errors);
+    }
+
+    /**
+     * Компилирует уже собранный набор правил, например полученный из {@link DbEntity}.
+     * @param ruleSet набор правил.
+     * @return план выполнения.
+     * @throws IllegalArgumentException если набор содержит конфликтующие правила.
+     */
+    public static ExecutionPlan compile(RuleSet ruleSet) {
+        return compile(ruleSet.getDefinitions(), new ArrayList<String>());
+    }
+
+    private static ExecutionPlan compile(List<RuleDefinition> definitions, List<String> errors) {
+        errors.addAll(check(definitions));
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException(join(errors));
+        }
+        List<RuleDefinition> plan = removeDuplicates(definitions);
+        moveValidationsForward(plan);
+        fuseRenameAndWrap(plan);
+        return new ExecutionPlan(plan, definitions.size());
+    }
+
+    private static void addRule(RuleSet.Builder builder, Element element, List<String> errors) {
+        String target = element.getAttribute("target");
+        switch (element.getTagName()) {
+            case "changeNodeName":
+                builder.changeNodeName(target, element.getAttribute("name"));
+                break;
+            case "addNewNode":
+                builder.addNewNode(target, element.getAttribute("node"));
+                break;
+            case "changeRootTag":
+                builder.changeRootTag(target, element.getAttribute("parent"));
+                break;
+            case "addNewTextNode":
+                builder.addNewTextNode(target, element.getAttribute("node"));
+                break;
+            case "typeValidation":
+                builder.typeValidation(target, element.getAttribute("pattern"));
+                break;
+            case "crossValidation":
+                builder.crossValidation(target, element.getAttribute("reference"));
+                break;
+            case "entity":
+                builder.dbEntity(new DbEntity()
+                        .setName(element.getAttribute("name"))
+                        .setChangesName(optionalAttribute(element, "changesName"))
+                        .setParentTag(optionalAttribute(element, "parentTag"))
+                        .setChildTag(optionalAttribute(element, "childTag"))
+                        .setPatternType(optionalAttribute(element, "patternType")));
+                break;
+            default:
+                errors.add("Неизвестное правило: " + element.getTagName() + ".");
+        }
+    }
+
+    private static String optionalAttribute(Element element, String name) {
+        return element.hasAttribute(name) ? element.getAttribute(name) : null;
+    }
+
+    /**
+     * Проверяет правила и собирает все найденные ошибки.
+     */
+    private static List<String> check(List<RuleDefinition> definitions) {
+        List<String> errors = new ArrayList<>();
+        Map<String, String> renames = new HashMap<>();
+        for (int index = 0; index < definitions.size(); index++) {
+            RuleDefinition definition = definitions.get(index);
+            String target = definition.getTargetNodeName();
+            String argument = definition.getArgument();
+            checkNodeName(definition, target, errors);
+            switch (definition.getKind()) {
+                case TYPE_VALIDATION:
+                    try {
+                        PatternCache.get(argument);
+                    } catch (PatternSyntaxException | NullPointerException e) {
+                        errors.add(definition + ": неверный паттерн.");
+                    }
+                    continue;
+                case CHANGE_NODE_NAME:
+                    String previous = renames.get(target);
+                    if (previous != null && !previous.equals(argument) && !createdBetween(definitions, target, index)) {
+                        errors.add(definition + ": тег " + target + " уже переименован в " + previous + ".");
+                    }
+                    renames.put(target, argument);
+                    break;
+                default:
+                    break;
+            }
+            checkNodeName(definition, argument, errors);
+            if (target != null && target.equals(argument)
+                    && definition.getKind() != RuleDefinition.Kind.CROSS_VALIDATION) {
+                errors.add(definition + ": правило ссылается на тот же тег.");
+            }
+        }
+        return errors;
+    }
+
+    private static void checkNodeName(RuleDefinition definition, String nodeName, List<String> errors) {
+        if (nodeName == null || !NODE_NAME.matcher(nodeName).matches()) {
+            errors.add(definition + ": неверное имя тега " + nodeName + ".");
+        }
+    }
+
+    /**
+     * Появляются ли теги nodeName между последним переименованием этого тега и правилом index.
+     */
+    private static boolean createdBetween(List<RuleDefinition> definitions, String nodeName, int index) {
+        for (int position = index - 1; position >= 0; position--) {
+            RuleDefinition definition = definitions.get(position);
+            if (definition.getKind() == RuleDefinition.Kind.CHANGE_NODE_NAME
+                    && definition.getTargetNodeName().equals(nodeName)) {
+                return false;
+            }
+            if (creates(definition, nodeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean creates(RuleDefinition definition, String nodeName) {
+        switch (definition.getKind()) {
+            case CHANGE_NODE_NAME:
+            case ADD_NEW_NODE:
+            case ADD_NEW_TEXT_NODE:
+                return definition.getArgument().equals(nodeName);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Удаляет повторы проверок и переименований. Повтор удаляется, только если между ним и первым
+     * правилом нет изменений, затрагивающих его теги: тогда повтор ничего не меняет и не находит новых ошибок.
+     * Повторы остальных правил не удаляются, тк каждое их выполнение меняет документ.
+     */
+    private static List<RuleDefinition> removeDuplicates(List<RuleDefinition> definitions) {
+        List<RuleDefinition> result = new ArrayList<>(definitions.size());
+        for (RuleDefinition definition : definitions) {
+            if (!isValidation(definition) && definition.getKind() != RuleDefinition.Kind.CHANGE_NODE_NAME) {
+                result.add(definition);
+                continue;
+            }
+            boolean duplicate = false;
+            for (int index = result.size() - 1; index >= 0; index--) {
+                RuleDefinition previous = result.get(index);
+                if (previous.equals(definition)) {
+                    duplicate = true;
+                    break;
+                }
+                if (affects(previous, definition)) {
+                    break;
+                }
+            }
+            if (!duplicate) {
+                result.add(definition);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Переносит каждую проверку как можно раньше, пропуская вперед изменения, которые не затрагивают
+     * ее теги. Порядок проверок между собой сохраняется.
+     */
+    private static void moveValidationsForward(List<RuleDefinition> definitions) {
+        for (int index = 1; index < definitions.size(); index++) {
+            RuleDefinition definition = definitions.get(index);
+            if (!isValidation(definition)) {
+                continue;
+            }
+            int position = index;
+            while (position > 0 && !isValidation(definitions.get(position - 1))
+                    && !affects(definitions.get(position - 1), definition)) {
+                position--;
+            }
+            if (position < index) {
+                definitions.remove(index);
+                definitions.add(position, definition);
+            }
+        }
+    }
+
+    /**
+     * Ставит переименование тега и оборачивание того же тега рядом, если правила между ними независимы
+     * от обоих. Тогда план применит оба правила к ноде за одно ее посещение.
+     */
+    private static void fuseRenameAndWrap(List<RuleDefinition> definitions) {
+        for (int index = 0; index < definitions.size(); index++) {
+            RuleDefinition first = definitions.get(index);
+            if (first.getKind() != RuleDefinition.Kind.CHANGE_NODE_NAME && !isWrap(first)) {
+                continue;
+            }
+            for (int next = index + 1; next < definitions.size(); next++) {
+                RuleDefinition second = definitions.get(next);
+                if (isRenameAndWrap(first, second)) {
+                    if (next > index + 1 && canMoveBefore(definitions, next, index)) {
+                        definitions.remove(next);
+                        definitions.add(index + 1, second);
+                    }
+                    break;
+                }
+                //правила дальше зависят от first, и пару с ним уже не составить
+                if (!independent(second, first)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Можно ли перенести правило from на позицию сразу после правила to.
+     */
+    private static boolean canMoveBefore(List<RuleDefinition> definitions, int from, int to) {
+        RuleDefinition moving = definitions.get(from);
+        for (int index = to + 1; index < from; index++) {
+            if (!independent(definitions.get(index), moving)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRenameAndWrap(RuleDefinition first, RuleDefinition second) {
+        if (first.getKind() == RuleDefinition.Kind.CHANGE_NODE_NAME) {
+            return isWrap(second) && second.getTargetNodeName().equals(first.getArgument());
+        }
+        return isWrap(first) && second.getKind() == RuleDefinition.Kind.CHANGE_NODE_NAME
+                && second.getTargetNodeName().equals(first.getTargetNodeName());
+    }
+
+    private static boolean isWrap(RuleDefinition definition) {
+        return definition.getKind() == RuleDefinition.Kind.ADD_NEW_NODE
+                || definition.getKind() == RuleDefinition.Kind.ADD_NEW_TEXT_NODE;
+    }
+
+    private static boolean isValidation(RuleDefinition definition) {
+        return definition.getKind() == RuleDefinition.Kind.TYPE_VALIDATION
+                || definition.getKind() == RuleDefinition.Kind.CROSS_VALIDATION;
+    }
+
+    /**
+     * Может ли изменение mutation повлиять на результат проверки или переименования definition.
+     * changeRootTag переносит ноды между родителями и может изменить текст любого тега. addNewTextNode удаляет
+     * всех потомков тега, а какие теги могут в нем лежать, по правилам неизвестно, поэтому оно влияет
+     * на любую проверку.
+     */
+    private static boolean affects(RuleDefinition mutation, RuleDefinition definition) {
+        if (isValidation(mutation)) {
+            return false;
+        }
+        if (mutation.getKind() == RuleDefinition.Kind.CHANGE_ROOT_TAG) {
+            return isValidation(definition);
+        }
+        if (mutation.getKind() == RuleDefinition.Kind.ADD_NEW_TEXT_NODE && isValidation(definition)) {
+            return true;
+        }
+        return sharesNodeNames(mutation, definition);
+    }
+
+    /**
+     * Независимы ли правила: их можно выполнить в любом порядке с тем же результатом.
+     */
+    private static boolean independent(RuleDefinition first, RuleDefinition second) {
+        if (first.getKind() == RuleDefinition.Kind.CHANGE_ROOT_TAG
+                || second.getKind() == RuleDefinition.Kind.CHANGE_ROOT_TAG) {
+            return false;
+        }
+        //addNewTextNode удаляет потомков тега, среди которых может быть проверяемый тег
+        if ((first.getKind() == RuleDefinition.Kind.ADD_NEW_TEXT_NODE && isValidation(second))
+                || (second.getKind() == RuleDefinition.Kind.ADD_NEW_TEXT_NODE && isValidation(first))) {
+            return false;
+        }
+        return (isValidation(first) && isValidation(second)) || !sharesNodeNames(first, second);
+    }
+
+    private static boolean sharesNodeNames(RuleDefinition first, RuleDefinition second) {
+        Set<String> names = nodeNames(first);
+        for (String name : nodeNames(second)) {
+            if (names.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Имена тегов, с которыми работает правило. Паттерн typeValidation именем тега не является.
+     */
+    private static Set<String> nodeNames(RuleDefinition definition) {
+        Set<String> names = new HashSet<>(2);
+        names.add(definition.getTargetNodeName());
+        if (definition.getKind() != RuleDefinition.Kind.TYPE_VALIDATION) {
+            names.add(definition.getArgument());
+        }
+        return names;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder temp = new StringBuilder();
+        for (String value : values) {
+            if (temp.length() > 0) {
+                temp.append("\n");
+            }
+            temp.append(value);
+        }
+        return temp.toString();
+    }
+}
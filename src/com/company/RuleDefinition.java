@@ -0,0 +1,96 @@
+package com.company;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Описание правила трансформации или валидации, не привязанное к конкретному xml-документу.
+ * Два описания равны, если совпадают вид правила и оба параметра.
+ */
+final class RuleDefinition implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Виды правил. Соответствуют методам добавления правил в {@link XmlFile}.
+     */
+    enum Kind {
+        CHANGE_NODE_NAME,
+        ADD_NEW_NODE,
+        CHANGE_ROOT_TAG,
+        ADD_NEW_TEXT_NODE,
+        TYPE_VALIDATION,
+        CROSS_VALIDATION
+    }
+
+    private final Kind kind;
+    private final String targetNodeName;
+    private final String argument;
+
+    /**
+     * Конструктор.
+     * @param kind вид правила.
+     * @param targetNodeName название тега к которому надо применить правило.
+     * @param argument второй параметр правила: новое имя, имя нового тега, паттерн или имя тега для сверки.
+     */
+    RuleDefinition(Kind kind, String targetNodeName, String argument) {
+        this.kind = kind;
+        this.targetNodeName = targetNodeName;
+        this.argument = argument;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getTargetNodeName() {
+        return targetNodeName;
+    }
+
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * Имя, которое тег с исходным именем sourceName имеет перед выполнением правила ruleIndex,
+     * если правила выполняются по одному: переименования предыдущими правилами применяются по порядку.
+     * @param rules правила в порядке выполнения.
+     * @param sourceName имя тега в исходном документе.
+     * @param ruleIndex номер правила.
+     * @return имя тега.
+     */
+    static String nameBefore(List<RuleDefinition> rules, String sourceName, int ruleIndex) {
+        String name = sourceName;
+        for (int index = 0; index < ruleIndex; index++) {
+            RuleDefinition rule = rules.get(index);
+            if (rule.kind == Kind.CHANGE_NODE_NAME && rule.targetNodeName.equals(name)) {
+                name = rule.argument;
+            }
+        }
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof RuleDefinition)) {
+            return false;
+        }
+        RuleDefinition other = (RuleDefinition) object;
+        return kind == other.kind && Objects.equals(targetNodeName, other.targetNodeName)
+                && Objects.equals(argument, other.argument);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, targetNodeName, argument);
+    }
+
+    @Override
+    public String toString() {
+        return kind + "(" + targetNodeName + ", " + argument + ")";
+    }
+}
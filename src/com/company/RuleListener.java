@@ -0,0 +1,40 @@
+package com.company;
+
+/**
+ * Слушатель выполнения правил над документом: время разбора, время и счетчики каждого правила, время записи.
+ * Подключается к документу через {@link XmlFile#setRuleListener(RuleListener)}; пока слушатель не подключен,
+ * время не измеряется и счетчики не считаются.
+ * <p>
+ * Один слушатель может получать события от документов из разных потоков одновременно.
+ */
+public interface RuleListener {
+
+    /**
+     * Документ разобран. Вызывается при подключении слушателя, тк разбор происходит в конструкторе документа.
+     * @param nanos время разбора в наносекундах.
+     */
+    void documentParsed(long nanos);
+
+    /**
+     * Правило выполнено над всем документом.
+     * @param rule описание правила, например {@code TYPE_VALIDATION(periodId, ^\d+$)}.
+     * @param nanos суммарное время работы правила в наносекундах.
+     * @param matchedNodes количество нод, к которым применялось правило.
+     * @param mutations количество изменений документа; у правил валидации всегда 0.
+     * @param validationErrors количество найденных правилом ошибок валидации.
+     */
+    void ruleExecuted(String rule, long nanos, int matchedNodes, int mutations, int validationErrors);
+
+    /**
+     * Все правила выполнены над документом.
+     * @param nanos время выполнения всех правил в наносекундах.
+     * @param validationErrors количество ошибок валидации в документе.
+     */
+    void rulesExecuted(long nanos, int validationErrors);
+
+    /**
+     * Документ записан.
+     * @param nanos время записи в наносекундах.
+     */
+    void documentSerialized(long nanos);
+}
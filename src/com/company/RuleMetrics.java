@@ -0,0 +1,158 @@
+package com.company;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Накопительные счетчики выполнения правил для всех документов, к которым подключен этот слушатель.
+ * Счетчики построены на {@link LongAdder} и почти не мешают друг другу при обработке документов
+ * в нескольких потоках. Показатели можно смотреть через JMX после {@link #register(String)}.
+ */
+public class RuleMetrics implements RuleListener, RuleMetricsMXBean {
+
+    private final LongAdder documentCount = new LongAdder();
+    private final LongAdder invalidDocumentCount = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder rulesNanos = new LongAdder();
+    private final LongAdder serializeNanos = new LongAdder();
+    private final LongAccumulator maxDocumentRulesNanos = new LongAccumulator(Math::max, 0);
+    private final ConcurrentMap<String, RuleCounters> ruleCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Регистрирует счетчики в платформенном MBeanServer.
+     * @param name имя MBean, например {@code com.company:type=RuleMetrics,name=batch}.
+     * @return этот объект.
+     * @throws JMException
+     */
+    public RuleMetrics register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        return this;
+    }
+
+    @Override
+    public void documentParsed(long nanos) {
+        parseNanos.add(nanos);
+    }
+
+    @Override
+    public void ruleExecuted(String rule, long nanos, int matchedNodes, int mutations, int validationErrors) {
+        RuleCounters counters = ruleCounters.get(rule);
+        if (counters == null) {
+            counters = new RuleCounters();
+            RuleCounters existing = ruleCounters.putIfAbsent(rule, counters);
+            if (existing != null) {
+                counters = existing;
+            }
+        }
+        counters.nanos.add(nanos);
+        counters.matchedNodes.add(matchedNodes);
+        counters.mutations.add(mutations);
+        counters.validationErrors.add(validationErrors);
+    }
+
+    @Override
+    public void rulesExecuted(long nanos, int validationErrors) {
+        documentCount.increment();
+        if (validationErrors > 0) {
+            invalidDocumentCount.increment();
+        }
+        rulesNanos.add(nanos);
+        maxDocumentRulesNanos.accumulate(nanos);
+    }
+
+    @Override
+    public void documentSerialized(long nanos) {
+        serializeNanos.add(nanos);
+    }
+
+    @Override
+    public long getDocumentCount() {
+        return documentCount.sum();
+    }
+
+    @Override
+    public long getInvalidDocumentCount() {
+        return invalidDocumentCount.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    @Override
+    public long getRulesNanos() {
+        return rulesNanos.sum();
+    }
+
+    @Override
+    public long getSerializeNanos() {
+        return serializeNanos.sum();
+    }
+
+    @Override
+    public long getMaxDocumentRulesNanos() {
+        return maxDocumentRulesNanos.get();
+    }
+
+    @Override
+    public Map<String, Long> getRuleNanos() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, RuleCounters> entry : ruleCounters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().nanos.sum());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getRuleMatchedNodes() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, RuleCounters> entry : ruleCounters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().matchedNodes.sum());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getRuleMutations() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, RuleCounters> entry : ruleCounters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().mutations.sum());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getRuleValidationErrors() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, RuleCounters> entry : ruleCounters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().validationErrors.sum());
+        }
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        documentCount.reset();
+        invalidDocumentCount.reset();
+        parseNanos.reset();
+        rulesNanos.reset();
+        serializeNanos.reset();
+        maxDocumentRulesNanos.reset();
+        ruleCounters.clear();
+    }
+
+    private static final class RuleCounters {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder matchedNodes = new LongAdder();
+        private final LongAdder mutations = new LongAdder();
+        private final LongAdder validationErrors = new LongAdder();
+    }
+}
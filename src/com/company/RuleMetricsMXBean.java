@@ -0,0 +1,38 @@
+package com.company;
+
+import java.util.Map;
+
+/**
+ * Показатели {@link RuleMetrics}, доступные через JMX. Время указано в наносекундах и накапливается
+ * с момента создания или последнего {@link #reset()}.
+ */
+public interface RuleMetricsMXBean {
+
+    long getDocumentCount();
+
+    long getInvalidDocumentCount();
+
+    long getParseNanos();
+
+    long getRulesNanos();
+
+    long getSerializeNanos();
+
+    /**
+     * Наибольшее время выполнения всех правил над одним документом.
+     */
+    long getMaxDocumentRulesNanos();
+
+    /**
+     * Суммарное время работы по описанию правила.
+     */
+    Map<String, Long> getRuleNanos();
+
+    Map<String, Long> getRuleMatchedNodes();
+
+    Map<String, Long> getRuleMutations();
+
+    Map<String, Long> getRuleValidationErrors();
+
+    void reset();
+}
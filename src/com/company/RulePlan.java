@@ -0,0 +1,424 @@
+package com.company;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Скомпилированный план выполнения правил. Подряд идущие локальные правила группируются по имени тега
+ * и применяются за один обход документа, вместо отдельного обхода на каждое правило.
+ * <p>
+ * Порядок правил сохраняется: к каждой ноде правила применяются в порядке добавления, с учетом того,
+ * что правило может переименовать ноду. Ошибки валидации и пути к нодам в них такие же, как при выполнении
+ * правил по одному: по правилам, а внутри правила в порядке документа. Новый проход начинается, если:
+ * <ul>
+ *     <li>правило не локальное (changeRootTag, crossValidation), оно выполняется отдельно;</li>
+ *     <li>правило обрабатывает тег, созданный предыдущим правилом этого прохода;</li>
+ *     <li>в проходе уже было правило addNewTextNode, удаляющее содержимое ноды, а правило обрабатывает другой тег.</li>
+ * </ul>
+ */
+class RulePlan {
+
+    /**
+     * Проходы по документу в порядке выполнения.
+     */
+    private final List<Stage> stages;
+
+    /**
+     * Конструктор. Правила описываются для {@link RuleListener} так же, как в {@link RuleDefinition#toString()},
+     * независимо от того, как собран набор правил.
+     * @param definitions описания правил в порядке их добавления.
+     */
+    RulePlan(List<RuleDefinition> definitions) {
+        stages = new ArrayList<>();
+        Stage stage = null;
+        for (int index = 0; index < definitions.size(); index++) {
+            RuleDefinition definition = definitions.get(index);
+            XmlFile.Rules rule = XmlFile.createRule(definition);
+            String ruleName = definition.toString();
+            if (!(rule instanceof XmlFile.AbstractRunnableRule)
+                    || !((XmlFile.AbstractRunnableRule) rule).isLocal()) {
+                stages.add(new Stage(rule, ruleName, index));
+                stage = null;
+                continue;
+            }
+            XmlFile.AbstractRunnableRule localRule = (XmlFile.AbstractRunnableRule) rule;
+            if (stage == null || !stage.accepts(localRule)) {
+                stage = new Stage(null, null, index);
+                stages.add(stage);
+            }
+            stage.add(localRule, ruleName);
+        }
+    }
+
+    /**
+     * Количество проходов по документу, которое потребуется для выполнения плана.
+     * @return количество проходов.
+     */
+    public int getStageCount() {
+        return stages.size();
+    }
+
+    /**
+     * Выполняет все правила плана над документом. Если к документу подключен {@link RuleListener},
+     * время и счетчики каждого правила передаются ему.
+     * @param xmlFile xml-документ.
+     */
+    public void execute(XmlFile xmlFile) {
+        RuleListener ruleListener = xmlFile.getRuleListener();
+        if (ruleListener == null) {
+            for (Stage stage : stages) {
+                stage.execute(xmlFile, null);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        for (Stage stage : stages) {
+            stage.executeMeasured(xmlFile, ruleListener);
+        }
+        ruleListener.rulesExecuted(System.nanoTime() - start, xmlFile.getLog().getErrorCount());
+    }
+
+    /**
+     * Один проход по документу: либо одно нелокальное правило, либо группа локальных правил.
+     */
+    private static class Stage {
+        private final XmlFile.Rules singleRule;
+        private final String singleRuleName;
+        /**
+         * Номер первого правила прохода в плане.
+         */
+        private final int firstRule;
+        private final List<XmlFile.AbstractRunnableRule> rules = new ArrayList<>();
+        private final List<String> ruleNames = new ArrayList<>();
+        private final Map<String, List<Integer>> rulesByTag = new HashMap<>();
+        private final Set<String> createdNodeNames = new HashSet<>();
+        /**
+         * Имена, под которыми в проходе встречается нода, содержимое которой заменено правилом addNewTextNode.
+         * null, если таких правил в проходе нет.
+         */
+        private Set<String> textNodeNames;
+        /**
+         * В проходе есть правила валидации.
+         */
+        private boolean hasValidations;
+        /**
+         * В проходе есть правила, меняющие документ.
+         */
+        private boolean hasMutations;
+
+        private Stage(XmlFile.Rules singleRule, String singleRuleName, int firstRule) {
+            this.singleRule = singleRule;
+            this.singleRuleName = singleRuleName;
+            this.firstRule = firstRule;
+        }
+
+        private boolean accepts(XmlFile.AbstractRunnableRule rule) {
+            String targetNodeName = rule.getTargetNodeName();
+            if (createdNodeNames.contains(targetNodeName)) {
+                return false;
+            }
+            return textNodeNames == null || textNodeNames.contains(targetNodeName);
+        }
+
+        private void add(XmlFile.AbstractRunnableRule rule, String ruleName) {
+            String targetNodeName = rule.getTargetNodeName();
+            List<Integer> indexes = rulesByTag.get(targetNodeName);
+            if (indexes == null) {
+                indexes = new ArrayList<>(2);
+                rulesByTag.put(targetNodeName, indexes);
+            }
+            indexes.add(rules.size());
+            rules.add(rule);
+            ruleNames.add(ruleName);
+            hasValidations |= rule.isValidation();
+            hasMutations |= !rule.isValidation();
+            if (rule.getCreatedNodeName() != null) {
+                createdNodeNames.add(rule.getCreatedNodeName());
+            }
+            if (textNodeNames != null && textNodeNames.contains(targetNodeName)
+                    && rule.getRenamedNodeName() != null) {
+                textNodeNames.add(rule.getRenamedNodeName());
+            }
+            if (rule.replacesContent()) {
+                if (textNodeNames == null) {
+                    textNodeNames = new HashSet<>();
+                }
+                textNodeNames.add(targetNodeName);
+            }
+        }
+
+        /**
+         * Выполняет проход.
+         * @param xmlFile xml-документ.
+         * @param metrics счетчики правил прохода или null, если измерения выключены.
+         */
+        private void execute(XmlFile xmlFile, StageMetrics metrics) {
+            if (singleRule != null) {
+                singleRule.runRule(xmlFile);
+                return;
+            }
+            XmlValidationLog validationLog = xmlFile.getLog();
+            if (!hasMutations && validationLog.isLimitReached()) {
+                return;
+            }
+            List<Node> applyingNodes = new ArrayList<>();
+            collectNodes(xmlFile.getDocument(), applyingNodes);
+            //ошибки и пути к нодам должны быть такими же, как при выполнении правил по одному
+            NamesBeforeRule namesBeforeRule = hasValidations ? new NamesBeforeRule() : null;
+            if (hasValidations) {
+                validationLog.startDeferred(rules.size(), true);
+                xmlFile.setNodeNames(namesBeforeRule);
+            }
+            try {
+                //как и в AbstractRunnableRule.runRule(), ноды обрабатываются с конца документа
+                for (int index = applyingNodes.size() - 1; index >= 0; index--) {
+                    Node node = applyingNodes.get(index);
+                    int position = 0;
+                    while (node != null) {
+                        int ruleIndex = nextRule(node.getNodeName(), position);
+                        if (ruleIndex < 0) {
+                            break;
+                        }
+                        XmlFile.AbstractRunnableRule rule = rules.get(ruleIndex);
+                        if (rule.isValidation()) {
+                            validationLog.deferTo(ruleIndex);
+                            namesBeforeRule.ruleIndex = ruleIndex;
+                        }
+                        node = metrics == null
+                                ? rule.apply(xmlFile, node)
+                                : metrics.apply(rule, ruleIndex, xmlFile, node);
+                        position = ruleIndex + 1;
+                    }
+                }
+            } finally {
+                if (hasValidations) {
+                    xmlFile.setNodeNames(null);
+                    int[] recorded = validationLog.finishDeferred();
+                    if (metrics != null) {
+                        System.arraycopy(recorded, 0, metrics.validationErrors, 0, recorded.length);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Имя, которое нода с именем nodeName получает от правил прохода с номерами меньше ruleIndex.
+         */
+        private String nameBefore(String nodeName, int ruleIndex) {
+            String name = nodeName;
+            int position = 0;
+            while (true) {
+                int index = nextRule(name, position);
+                if (index < 0 || index >= ruleIndex) {
+                    return name;
+                }
+                String renamedNodeName = rules.get(index).getRenamedNodeName();
+                if (renamedNodeName != null) {
+                    name = renamedNodeName;
+                }
+                position = index + 1;
+            }
+        }
+
+        /**
+         * Имена нод для правила валидации прохода. Проход идет с конца документа, поэтому предки и предыдущие
+         * соседи проверяемой ноды еще не обработаны и имеют имена, которые были до прохода.
+         * <p>
+         * Пути к нодам строятся по номерам детей родителей, которые считаются один раз на родителя и правило,
+         * а не перебором предыдущих соседей для каждой ошибки.
+         */
+        private class NamesBeforeRule implements XmlFile.NodeNames {
+            private int ruleIndex;
+            /**
+             * Дети родителей проверяемых нод и их предков по номерам правил прохода.
+             */
+            private final Map<Integer, Map<Node, Children>> childrenByRule = new HashMap<>();
+
+            @Override
+            public String nameOf(Node node) {
+                return nameBefore(node.getNodeName(), ruleIndex);
+            }
+
+            @Override
+            public int ruleIndex() {
+                return firstRule + ruleIndex;
+            }
+
+            @Override
+            public String locationOf(Node node) {
+                Node parent = node.getParentNode();
+                if (parent == null || parent.getNodeType() != Node.ELEMENT_NODE) {
+                    return "/" + node.getNodeName();
+                }
+                //у самой ноды уже текущее имя
+                return childrenOf(parent).location(node, node.getNodeName());
+            }
+
+            private Children childrenOf(Node parent) {
+                Map<Node, Children> children = childrenByRule.get(ruleIndex);
+                if (children == null) {
+                    children = new IdentityHashMap<>();
+                    childrenByRule.put(ruleIndex, children);
+                }
+                Children parentChildren = children.get(parent);
+                if (parentChildren == null) {
+                    parentChildren = new Children(parent);
+                    children.put(parent, parentChildren);
+                }
+                return parentChildren;
+            }
+
+            /**
+             * Дети-элементы одного родителя: путь к родителю и номера детей по именам перед правилом.
+             * Считаются, когда еще не обработан ни один ребенок, которого запросят позже: запрашиваются только
+             * проверяемая нода и ее предки, а все дети перед ними обрабатываются после них.
+             */
+            private class Children {
+                private final String parentLocation;
+                private final Map<Node, Integer> indexes = new IdentityHashMap<>();
+                /**
+                 * Номера детей по именам, в порядке возрастания.
+                 */
+                private final Map<String, List<Integer>> indexesByName = new HashMap<>();
+
+                private Children(Node parent) {
+                    Node grandParent = parent.getParentNode();
+                    parentLocation = grandParent == null || grandParent.getNodeType() != Node.ELEMENT_NODE
+                            ? "/" + nameOf(parent)
+                            : childrenOf(grandParent).location(parent, nameOf(parent));
+                    int index = 0;
+                    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        if (child.getNodeType() != Node.ELEMENT_NODE) {
+                            continue;
+                        }
+                        String name = nameOf(child);
+                        List<Integer> nameIndexes = indexesByName.get(name);
+                        if (nameIndexes == null) {
+                            nameIndexes = new ArrayList<>(1);
+                            indexesByName.put(name, nameIndexes);
+                        }
+                        nameIndexes.add(index);
+                        indexes.put(child, index++);
+                    }
+                }
+
+                private String location(Node child, String name) {
+                    Integer index = indexes.get(child);
+                    List<Integer> nameIndexes = indexesByName.get(name);
+                    int position = 1;
+                    if (index == null) {
+                        //ребенок добавлен после подсчета
+                        position = XmlFile.AbstractRunnableRule.positionOf(child, name, NamesBeforeRule.this);
+                    } else if (nameIndexes != null) {
+                        int found = Collections.binarySearch(nameIndexes, index);
+                        position += found >= 0 ? found : -found - 1;
+                    }
+                    return position > 1
+                            ? parentLocation + "/" + name + "[" + position + "]"
+                            : parentLocation + "/" + name;
+                }
+            }
+        }
+
+        private void executeMeasured(XmlFile xmlFile, RuleListener ruleListener) {
+            XmlValidationLog validationLog = xmlFile.getLog();
+            if (singleRule != null) {
+                int matchedNodes = singleRule instanceof XmlFile.AbstractRunnableRule
+                        ? xmlFile.getDocument().getElementsByTagName(
+                                ((XmlFile.AbstractRunnableRule) singleRule).getTargetNodeName()).getLength()
+                        : 0;
+                boolean validation = singleRule instanceof XmlFile.AbstractRunnableRule
+                        && ((XmlFile.AbstractRunnableRule) singleRule).isValidation();
+                int errorsBefore = validationLog.getErrorCount();
+                long start = System.nanoTime();
+                singleRule.runRule(xmlFile);
+                ruleListener.ruleExecuted(singleRuleName, System.nanoTime() - start, matchedNodes,
+                        validation ? 0 : matchedNodes, validationLog.getErrorCount() - errorsBefore);
+                return;
+            }
+            StageMetrics metrics = new StageMetrics(rules.size());
+            execute(xmlFile, metrics);
+            for (int index = 0; index < rules.size(); index++) {
+                ruleListener.ruleExecuted(ruleNames.get(index), metrics.nanos[index], metrics.matchedNodes[index],
+                        rules.get(index).isValidation() ? 0 : metrics.matchedNodes[index],
+                        metrics.validationErrors[index]);
+            }
+        }
+
+        /**
+         * Ищет первое правило для тега, начиная с позиции position.
+         * @return индекс правила или -1, если правил больше нет.
+         */
+        private int nextRule(String nodeName, int position) {
+            List<Integer> indexes = rulesByTag.get(nodeName);
+            if (indexes != null) {
+                for (Integer index : indexes) {
+                    if (index >= position) {
+                        return index;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Собирает в порядке документа все элементы, для которых в проходе есть правила.
+         */
+        private void collectNodes(Document document, List<Node> applyingNodes) {
+            Node node = document.getDocumentElement();
+            while (node != null) {
+                if (node.getNodeType() == Node.ELEMENT_NODE && rulesByTag.containsKey(node.getNodeName())) {
+                    applyingNodes.add(node);
+                }
+                if (node.getFirstChild() != null) {
+                    node = node.getFirstChild();
+                    continue;
+                }
+                while (node != null && node.getNextSibling() == null) {
+                    node = node.getParentNode();
+                    if (node == document) {
+                        return;
+                    }
+                }
+                if (node != null) {
+                    node = node.getNextSibling();
+                }
+            }
+        }
+    }
+
+    /**
+     * Время и счетчики правил одного прохода.
+     */
+    private static class StageMetrics {
+        private final long[] nanos;
+        private final int[] matchedNodes;
+        /**
+         * Ошибки каждого правила, попавшие в лог.
+         */
+        private final int[] validationErrors;
+
+        private StageMetrics(int ruleCount) {
+            this.nanos = new long[ruleCount];
+            this.matchedNodes = new int[ruleCount];
+            this.validationErrors = new int[ruleCount];
+        }
+
+        private Node apply(XmlFile.AbstractRunnableRule rule, int ruleIndex, XmlFile xmlFile, Node node) {
+            long start = System.nanoTime();
+            Node result = rule.apply(xmlFile, node);
+            nanos[ruleIndex] += System.nanoTime() - start;
+            matchedNodes[ruleIndex]++;
+            return result;
+        }
+    }
+}
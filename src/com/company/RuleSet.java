@@ -0,0 +1,163 @@
+package com.company;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Неизменяемый набор правил трансформации и валидации. Собирается один раз, например из списка {@link DbEntity},
+ * и затем применяется к любому количеству документов, в том числе из разных потоков одновременно:
+ * правила не хранят состояние документа, а результат валидации пишется в лог самого {@link XmlFile}.
+ */
+public final class RuleSet {
+
+    private final List<RuleDefinition> definitions;
+    private final RulePlan plan;
+    private final long fingerprint;
+
+    private RuleSet(List<RuleDefinition> definitions) {
+        this.definitions = Collections.unmodifiableList(new ArrayList<>(definitions));
+        this.plan = new RulePlan(this.definitions);
+        this.fingerprint = fingerprint(definitions);
+    }
+
+    /**
+     * Хэш описаний правил: у наборов с одинаковыми правилами в одинаковом порядке он совпадает,
+     * а после изменения правил, например новой версии формы в базе данных, меняется.
+     */
+    private static long fingerprint(List<RuleDefinition> definitions) {
+        StringBuilder description = new StringBuilder();
+        for (RuleDefinition definition : definitions) {
+            description.append(definition.getKind()).append('\u0000')
+                    .append(definition.getTargetNodeName()).append('\u0000')
+                    .append(definition.getArgument()).append('\u0001');
+        }
+        return ContentHash.murmur3(description.toString().getBytes(StandardCharsets.UTF_8), 0)[0];
+    }
+
+    /**
+     * Составляет правила трансформации и валидации по описаниям тегов из базы данных.
+     * Для каждого тега сначала добавляются правила валидации, затем добавление новых тегов, затем переименование.
+     * @param dbEntityList описания тегов.
+     * @return набор правил.
+     */
+    public static RuleSet fromDbEntities(List<DbEntity> dbEntityList) {
+        Builder builder = new Builder();
+        for(DbEntity dbEntity : dbEntityList) {
+            builder.dbEntity(dbEntity);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Собирает набор правил из скомпилированного плана.
+     * @param executionPlan план, полученный из {@link RuleCompiler}.
+     * @return набор правил.
+     */
+    public static RuleSet fromPlan(ExecutionPlan executionPlan) {
+        return new RuleSet(executionPlan.getDefinitions());
+    }
+
+    /**
+     * Применяет все правила к документу. Ошибки валидации пишутся в лог документа.
+     * @param xmlFile xml-документ.
+     */
+    public void applyTo(XmlFile xmlFile) {
+        plan.execute(xmlFile);
+    }
+
+    /**
+     * Описания правил в порядке их выполнения.
+     * @return неизменяемый список описаний.
+     */
+    List<RuleDefinition> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * Версия набора правил для ключей кэша, вычисленная по описаниям правил.
+     * @return хэш описаний правил.
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Построитель набора правил. Методы повторяют методы добавления правил в {@link XmlFile}.
+     */
+    public static class Builder {
+        private final List<RuleDefinition> definitions = new ArrayList<>();
+
+        public Builder changeNodeName(String targetNodeName, String nodeNewName) {
+            return add(RuleDefinition.Kind.CHANGE_NODE_NAME, targetNodeName, nodeNewName);
+        }
+
+        public Builder addNewNode(String targetNodeName, String newNodeName) {
+            return add(RuleDefinition.Kind.ADD_NEW_NODE, targetNodeName, newNodeName);
+        }
+
+        public Builder changeRootTag(String targetNodeName, String newParentNodeName) {
+            return add(RuleDefinition.Kind.CHANGE_ROOT_TAG, targetNodeName, newParentNodeName);
+        }
+
+        public Builder addNewTextNode(String targetTextNodeName, String newNodeTextName) {
+            return add(RuleDefinition.Kind.ADD_NEW_TEXT_NODE, targetTextNodeName, newNodeTextName);
+        }
+
+        public Builder typeValidation(String targetTextNodeName, String pattern) {
+            return add(RuleDefinition.Kind.TYPE_VALIDATION, targetTextNodeName, pattern);
+        }
+
+        public Builder crossValidation(String targetTextNodeName, String fromTextNodeName) {
+            return add(RuleDefinition.Kind.CROSS_VALIDATION, targetTextNodeName, fromTextNodeName);
+        }
+
+        /**
+         * Добавляет правила по описанию тега из базы данных.
+         * Сначала правила валидации, затем добавление новых тегов, затем переименование.
+         * @param dbEntity описание тега.
+         * @return этот построитель.
+         */
+        public Builder dbEntity(DbEntity dbEntity) {
+            //сначала правила валидации
+            if(dbEntity.patternType != null) {
+                typeValidation(dbEntity.name, dbEntity.patternType);
+            }
+            //добавление новых тегов
+            if(dbEntity.childTag != null) {
+                //если тег содержит внутри себя другой тег, который нужно перенести в новый тег, то
+                //в parentTag пишем его значение
+                if(dbEntity.parentTag != null) {
+                    addNewNode(dbEntity.name, dbEntity.childTag);
+                    changeRootTag(dbEntity.parentTag, dbEntity.childTag);
+                } else {
+                //если тег содержит только текст, то просто переносим его
+                    addNewTextNode(dbEntity.name, dbEntity.childTag);
+                }
+            }
+            //изменяем имя тега
+            if(dbEntity.changesName != null) {
+                changeNodeName(dbEntity.name, dbEntity.changesName);
+            }
+            return this;
+        }
+
+        Builder add(RuleDefinition.Kind kind, String targetNodeName, String argument) {
+            definitions.add(new RuleDefinition(kind, targetNodeName, argument));
+            return this;
+        }
+
+        /**
+         * Компилирует набор правил.
+         * @return неизменяемый набор правил.
+         */
+        public RuleSet build() {
+            return new RuleSet(definitions);
+        }
+
+        List<RuleDefinition> getDefinitions() {
+            return definitions;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.company;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш собранных наборов правил по типу формы. Набор правил собирается из {@link DbEntityRepository} один раз
+ * на версию описаний: при обработке документов база данных не запрашивается, кроме самого первого обращения
+ * к форме. Фоновая задача периодически сверяет версии и пересобирает наборы только изменившихся форм.
+ * <p>
+ * Если обновление не удалось, продолжает использоваться прежний набор правил, а ошибка доступна через
+ * {@link #getLastRefreshError()}.
+ */
+public class RuleSetCache implements AutoCloseable {
+
+    private final DbEntityRepository repository;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * Загрузки форм, которые еще не попали в entries.
+     */
+    private final ConcurrentMap<String, FutureTask<Entry>> loads = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private volatile Exception lastRefreshError;
+
+    /**
+     * Конструктор. Фоновое обновление не запускается, см. {@link #startRefresh(long, TimeUnit)}.
+     * @param repository хранилище описаний тегов.
+     */
+    public RuleSetCache(DbEntityRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Набор правил формы. При первом обращении к форме загружает её описания из хранилища. Разные формы
+     * загружаются параллельно, одну форму одновременно загружает только один поток, остальные ждут его.
+     * @param formType тип формы.
+     * @return набор правил.
+     * @throws SQLException если описания формы не удалось загрузить.
+     */
+    public RuleSet get(final String formType) throws SQLException {
+        Entry entry = entries.get(formType);
+        if (entry != null) {
+            return entry.ruleSet;
+        }
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws SQLException {
+                Entry loaded = load(formType);
+                Entry previous = entries.putIfAbsent(formType, loaded);
+                return previous != null ? previous : loaded;
+            }
+        });
+        FutureTask<Entry> loading = loads.putIfAbsent(formType, task);
+        if (loading == null) {
+            loading = task;
+            try {
+                task.run();
+            } finally {
+                loads.remove(formType, task);
+            }
+        }
+        try {
+            return loading.get().ruleSet;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Загрузка формы " + formType + " прервана.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Версия описаний, из которой собран текущий набор правил формы.
+     * @param formType тип формы.
+     * @return версия или -1, если форма еще не загружалась.
+     */
+    public long getVersion(String formType) {
+        Entry entry = entries.get(formType);
+        return entry == null ? -1 : entry.version;
+    }
+
+    /**
+     * Запускает фоновую проверку версий всех загруженных форм.
+     * @param period период проверки.
+     * @param unit единица измерения периода.
+     * @return этот кэш.
+     */
+    public synchronized RuleSetCache startRefresh(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Обновление уже запущено.");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "rule-set-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, period, period, unit);
+        return this;
+    }
+
+    /**
+     * Сверяет версии всех загруженных форм и пересобирает наборы правил изменившихся форм.
+     * Вызывается фоновой задачей, но может быть вызван и напрямую.
+     */
+    public void refresh() {
+        for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+            String formType = cached.getKey();
+            try {
+                if (repository.getVersion(formType) != cached.getValue().version) {
+                    //версия могла и уменьшиться, например после отката описаний; запись заменяется,
+                    //только если ее не заменили и не удалили, пока шла загрузка
+                    entries.replace(formType, cached.getValue(), load(formType));
+                }
+            } catch (SQLException | RuntimeException e) {
+                lastRefreshError = e;
+            }
+        }
+    }
+
+    /**
+     * Последняя ошибка фонового обновления.
+     * @return ошибка или null, если обновления проходили без ошибок.
+     */
+    public Exception getLastRefreshError() {
+        return lastRefreshError;
+    }
+
+    /**
+     * Удаляет форму из кэша; при следующем обращении она будет загружена заново.
+     * @param formType тип формы.
+     */
+    public void invalidate(String formType) {
+        entries.remove(formType);
+    }
+
+    /**
+     * Останавливает фоновое обновление.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Версия читается до описаний: если описания изменятся между запросами, набор правил будет новее своей
+     * версии и при следующей проверке просто пересоберется еще раз.
+     */
+    private Entry load(String formType) throws SQLException {
+        long version = repository.getVersion(formType);
+        RuleSet ruleSet = RuleSet.fromDbEntities(repository.findByFormType(formType));
+        return new Entry(version, ruleSet);
+    }
+
+    private static final class Entry {
+        private final long version;
+        private final RuleSet ruleSet;
+
+        private Entry(long version, RuleSet ruleSet) {
+            this.version = version;
+            this.ruleSet = ruleSet;
+        }
+    }
+}
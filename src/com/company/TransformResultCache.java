@@ -0,0 +1,457 @@
+package com.company;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш результатов трансформации по содержимому документа. Повторно присланный документ не разбирается,
+ * не трансформируется и не сериализуется заново: возвращаются сохраненные байты результата и итог валидации.
+ * <p>
+ * Ключ - хэш SHA-256 байтов документа вместе с версией набора правил, вычисленной по описаниям правил,
+ * параметрами записи и ограничением количества ошибок. Документы присылают клиенты, поэтому хэш
+ * криптографический: подобрать документ с чужим ключом и подменить закэшированный результат нельзя.
+ * Новая версия правил дает новые ключи, а старые записи вытесняются как давно не использованные.
+ * <p>
+ * В памяти хранятся записи общим размером не больше заданного, при превышении вытесняются давно
+ * не использованные. Если задан каталог на диске, вытесненные записи сохраняются в нем и читаются оттуда
+ * при следующем обращении; файлы каталога переживают перезапуск процесса. Кэш потокобезопасен,
+ * чтение и запись файлов выполняются вне блокировки.
+ */
+public class TransformResultCache {
+
+    private static final int FILE_FORMAT = 0x58524301;
+    private static final String FILE_SUFFIX = ".bin";
+    /**
+     * Приблизительный расход памяти на запись кроме самих данных: ключ, объекты и узел LinkedHashMap.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxMemoryBytes;
+    private final Map<Key, Result> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private Path spillDirectory;
+    private long maxDiskBytes;
+    /**
+     * Размеры файлов на диске в порядке обращения к ним.
+     */
+    private final Map<Key, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    private volatile IOException lastSpillError;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Конструктор кэша только в памяти.
+     * @param maxMemoryBytes максимальный размер записей в памяти.
+     */
+    public TransformResultCache(long maxMemoryBytes) {
+        if (maxMemoryBytes < 0) {
+            throw new IllegalArgumentException("maxMemoryBytes не может быть отрицательным.");
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Включает сохранение вытесненных записей на диск. Файлы, оставшиеся в каталоге от прошлого запуска,
+     * подключаются к кэшу.
+     * @param directory каталог для файлов кэша, создается при необходимости.
+     * @param maxDiskBytes максимальный размер файлов в каталоге.
+     * @return этот кэш.
+     * @throws IOException если каталог не удалось создать или прочитать.
+     */
+    public synchronized TransformResultCache setSpillDirectory(File directory, long maxDiskBytes)
+            throws IOException {
+        if (maxDiskBytes < 0) {
+            throw new IllegalArgumentException("maxDiskBytes не может быть отрицательным.");
+        }
+        Path path = directory.toPath();
+        Files.createDirectories(path);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                if (Key.fromFileName(file.getFileName().toString()) != null) {
+                    files.add(file);
+                }
+            }
+        }
+        //самые старые файлы вытесняются первыми
+        final Map<Path, Long> modified = new HashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path first, Path second) {
+                return Long.compare(modified.get(first), modified.get(second));
+            }
+        });
+        this.spillDirectory = path;
+        this.maxDiskBytes = maxDiskBytes;
+        disk.clear();
+        diskBytes = 0;
+        for (Path file : files) {
+            long size = Files.size(file);
+            disk.put(Key.fromFileName(file.getFileName().toString()), size);
+            diskBytes += size;
+        }
+        deleteFiles(trimDisk());
+        return this;
+    }
+
+    /**
+     * Возвращает результат трансформации документа из кэша или выполняет трансформацию и сохраняет результат.
+     * Одинаковые документы, присланные одновременно, могут быть обработаны несколько раз.
+     * @param input байты документа.
+     * @param ruleSet набор правил.
+     * @param options параметры записи результата.
+     * @param maxValidationErrors количество ошибок, после которого валидация документа прекращается.
+     * @return результат трансформации.
+     * @throws Exception ошибка чтения документа или записи результата.
+     */
+    public Result transform(byte[] input, RuleSet ruleSet, OutputOptions options, int maxValidationErrors)
+            throws Exception {
+        return transform(input, ruleSet, options, maxValidationErrors, XmlFactories.documentBuilder());
+    }
+
+    /**
+     * Как {@link #transform(byte[], RuleSet, OutputOptions, int)}, но документ читается заданным парсером,
+     * например {@link XmlFactories#secureDocumentBuilder()}.
+     */
+    Result transform(byte[] input, RuleSet ruleSet, OutputOptions options, int maxValidationErrors,
+                     DocumentBuilder documentBuilder) throws Exception {
+        Key key = Key.of(input, ruleSet, options, maxValidationErrors);
+        Result result = get(key);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+        XmlFile xmlFile = new XmlFile(XmlInput.of(input), documentBuilder);
+        xmlFile.setMaxValidationErrors(maxValidationErrors);
+        ruleSet.applyTo(xmlFile);
+        result = new Result(xmlFile.toByteArray(options), xmlFile.getLog().getErrorCount(),
+                xmlFile.getValidationLog());
+        put(key, result);
+        return result;
+    }
+
+    private Result get(Key key) {
+        Path file;
+        synchronized (this) {
+            Result result = memory.get(key);
+            //get, а не containsKey: обращение продлевает жизнь файла
+            if (result != null || spillDirectory == null || disk.get(key) == null) {
+                return result;
+            }
+            file = spillDirectory.resolve(key.fileName());
+        }
+        Result result;
+        try {
+            result = read(file);
+        } catch (IOException e) {
+            synchronized (this) {
+                Long size = disk.remove(key);
+                if (size != null) {
+                    diskBytes -= size;
+                }
+            }
+            return null;
+        }
+        put(key, result);
+        return result;
+    }
+
+    private void put(Key key, Result result) {
+        List<Map.Entry<Key, Result>> evicted = new ArrayList<>();
+        synchronized (this) {
+            long size = result.size();
+            if (size <= maxMemoryBytes) {
+                Result previous = memory.put(key, result);
+                memoryBytes += size - (previous == null ? 0 : previous.size());
+                Iterator<Map.Entry<Key, Result>> iterator = memory.entrySet().iterator();
+                while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+                    Map.Entry<Key, Result> eldest = iterator.next();
+                    iterator.remove();
+                    memoryBytes -= eldest.getValue().size();
+                    evicted.add(eldest);
+                }
+            } else {
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, result));
+            }
+            if (spillDirectory == null) {
+                return;
+            }
+        }
+        for (Map.Entry<Key, Result> entry : evicted) {
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spill(Key key, Result result) {
+        Path directory;
+        synchronized (this) {
+            if (spillDirectory == null || disk.containsKey(key) || result.fileSize() > maxDiskBytes) {
+                return;
+            }
+            directory = spillDirectory;
+        }
+        Path file = directory.resolve(key.fileName());
+        try {
+            Path temporary = Files.createTempFile(directory, "spill", ".tmp");
+            try {
+                write(temporary, result);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            lastSpillError = e;
+            return;
+        }
+        List<Path> deleted;
+        synchronized (this) {
+            Long previous = disk.put(key, result.fileSize());
+            diskBytes += result.fileSize() - (previous == null ? 0 : previous);
+            deleted = trimDisk();
+        }
+        deleteFiles(deleted);
+    }
+
+    /**
+     * Убирает из индекса самые старые файлы, пока их размер больше допустимого.
+     * @return файлы, которые нужно удалить.
+     */
+    private List<Path> trimDisk() {
+        List<Path> deleted = new ArrayList<>();
+        Iterator<Map.Entry<Key, Long>> iterator = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<Key, Long> eldest = iterator.next();
+            iterator.remove();
+            diskBytes -= eldest.getValue();
+            deleted.add(spillDirectory.resolve(eldest.getKey().fileName()));
+        }
+        return deleted;
+    }
+
+    private void deleteFiles(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                lastSpillError = e;
+            }
+        }
+    }
+
+    private static void write(Path file, Result result) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            byte[] validationLog = result.validationLog.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(FILE_FORMAT);
+            output.writeInt(result.errorCount);
+            output.writeInt(validationLog.length);
+            output.write(validationLog);
+            output.writeInt(result.output.length);
+            output.write(result.output);
+        }
+    }
+
+    private static Result read(Path file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file);
+             DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream))) {
+            if (input.readInt() != FILE_FORMAT) {
+                throw new IOException("Неизвестный формат файла кэша " + file);
+            }
+            int errorCount = input.readInt();
+            byte[] validationLog = new byte[input.readInt()];
+            input.readFully(validationLog);
+            byte[] output = new byte[input.readInt()];
+            input.readFully(output);
+            return new Result(output, errorCount, new String(validationLog, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Удаляет все записи из памяти и с диска.
+     */
+    public void clear() {
+        List<Path> deleted;
+        synchronized (this) {
+            memory.clear();
+            memoryBytes = 0;
+            if (spillDirectory == null) {
+                return;
+            }
+            deleted = new ArrayList<>(disk.size());
+            for (Key key : disk.keySet()) {
+                deleted.add(spillDirectory.resolve(key.fileName()));
+            }
+            disk.clear();
+            diskBytes = 0;
+        }
+        deleteFiles(deleted);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Последняя ошибка записи или удаления файла кэша. Такие ошибки не прерывают обработку:
+     * запись просто не сохраняется на диск.
+     * @return ошибка или null.
+     */
+    public IOException getLastSpillError() {
+        return lastSpillError;
+    }
+
+    /**
+     * Сохраненный результат трансформации.
+     */
+    public static final class Result {
+        private final byte[] output;
+        private final int errorCount;
+        private final String validationLog;
+
+        private Result(byte[] output, int errorCount, String validationLog) {
+            this.output = output;
+            this.errorCount = errorCount;
+            this.validationLog = validationLog;
+        }
+
+        /**
+         * Трансформированный документ. Массив общий для всех обращений к записи, менять его нельзя.
+         */
+        public byte[] getOutput() {
+            return output;
+        }
+
+        public int getErrorCount() {
+            return errorCount;
+        }
+
+        public boolean isValid() {
+            return errorCount == 0;
+        }
+
+        public String getValidationLog() {
+            return validationLog;
+        }
+
+        private long size() {
+            return ENTRY_OVERHEAD + output.length + 2L * validationLog.length();
+        }
+
+        private long fileSize() {
+            return 16 + output.length + validationLog.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    /**
+     * Хэш документа вместе со всем, что кроме документа влияет на результат.
+     */
+    private static final class Key {
+        private static final int DIGEST_LENGTH = 32;
+
+        private final byte[] digest;
+
+        private Key(byte[] digest) {
+            this.digest = digest;
+        }
+
+        private static Key of(byte[] input, RuleSet ruleSet, OutputOptions options, int maxValidationErrors) {
+            String description = ruleSet.getFingerprint() + "|" + options.isIndent() + "|"
+                    + options.getIndentAmount() + "|" + options.getEncoding() + "|"
+                    + options.isOmitXmlDeclaration() + "|" + options.isFastSerializer() + "|" + maxValidationErrors;
+            byte[] context = description.getBytes(StandardCharsets.UTF_8);
+            MessageDigest messageDigest;
+            try {
+                messageDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                //SHA-256 есть в любой JVM
+                throw new IllegalStateException(e);
+            }
+            //длина описания отделяет его от документа
+            messageDigest.update(ByteBuffer.allocate(4).putInt(context.length).array());
+            messageDigest.update(context);
+            messageDigest.update(input);
+            return new Key(messageDigest.digest());
+        }
+
+        private String fileName() {
+            StringBuilder fileName = new StringBuilder(DIGEST_LENGTH * 2 + FILE_SUFFIX.length());
+            for (byte value : digest) {
+                fileName.append(Character.forDigit((value >> 4) & 0xf, 16))
+                        .append(Character.forDigit(value & 0xf, 16));
+            }
+            return fileName.append(FILE_SUFFIX).toString();
+        }
+
+        /**
+         * @return ключ или null, если файл создан не кэшем или прежней версией кэша.
+         */
+        private static Key fromFileName(String fileName) {
+            if (fileName.length() != DIGEST_LENGTH * 2 + FILE_SUFFIX.length() || !fileName.endsWith(FILE_SUFFIX)) {
+                return null;
+            }
+            byte[] digest = new byte[DIGEST_LENGTH];
+            for (int index = 0; index < DIGEST_LENGTH; index++) {
+                int high = Character.digit(fileName.charAt(index * 2), 16);
+                int low = Character.digit(fileName.charAt(index * 2 + 1), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                digest[index] = (byte) (high << 4 | low);
+            }
+            return new Key(digest);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Key && Arrays.equals(digest, ((Key) object).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | digest[3] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.company;
+
+/**
+ * Одна ошибка валидации. Текст сообщения не хранится, а собирается только при вызове {@link #getMessage()}.
+ */
+public final class ValidationResult {
+
+    private final XmlFile.ValidationError error;
+    private final String tagName;
+    private final String referenceTagName;
+    private final String location;
+    private final String value;
+
+    /**
+     * Конструктор.
+     * @param error код ошибки.
+     * @param tagName имя тега, не прошедшего валидацию.
+     * @param referenceTagName имя тега, с которым шла сверка, или null для ошибок типа.
+     * @param location путь к тегу в документе в виде, похожем на XPath.
+     * @param value текст тега.
+     */
+    ValidationResult(XmlFile.ValidationError error, String tagName, String referenceTagName,
+                     String location, String value) {
+        this.error = error;
+        this.tagName = tagName;
+        this.referenceTagName = referenceTagName;
+        this.location = location;
+        this.value = value;
+    }
+
+    public XmlFile.ValidationError getError() {
+        return error;
+    }
+
+    public String getTagName() {
+        return tagName;
+    }
+
+    /**
+     * Имя тега, с текстом которого шла сверка.
+     * @return имя тега или null, если ошибка не относится к сверке.
+     */
+    public String getReferenceTagName() {
+        return referenceTagName;
+    }
+
+    /**
+     * Путь к тегу, например {@code /root/Document/powerFacilitiesVid[3]}.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Текст тега, не прошедший валидацию.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Собирает текст сообщения об ошибке.
+     * @return сообщение вместе с путем к тегу.
+     */
+    public String getMessage() {
+        String message = error == XmlFile.ValidationError.CROSS_VALIDATION_ERROR
+                ? error.getMessage(referenceTagName, tagName)
+                : error.getMessage(tagName);
+        return location == null ? message : message + " (" + location + ")";
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,268 @@
+package com.company;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Пакетная обработка xml-файлов: чтение, трансформация и валидация набором правил {@link RuleSet}
+ * в пуле потоков. Количество одновременно загруженных в память документов ограничено: пока все места заняты,
+ * новые файлы не отправляются в пул.
+ * <p>
+ * Парсеры и трансформеры не потокобезопасны, поэтому каждая задача берет пару из пула процессора
+ * и возвращает ее после обработки файла. Одновременно обрабатывается не больше maxDocumentsInMemory файлов,
+ * поэтому и пар создается не больше, независимо от вида потоков: при виртуальных потоках, которые создаются
+ * на каждую задачу, кеш {@link XmlFactories} по потокам не работал бы.
+ */
+public class XmlBatchProcessor {
+
+    private final RuleSet ruleSet;
+    private final ExecutorService executor;
+    private final Semaphore documentsInMemory;
+    private final Queue<Parsers> idleParsers = new ConcurrentLinkedQueue<>();
+    private RuleListener ruleListener;
+
+    /**
+     * Конструктор.
+     * @param ruleSet набор правил, применяемый к каждому файлу.
+     * @param executor пул потоков для обработки файлов. Закрывать пул должен вызывающий код.
+     * @param maxDocumentsInMemory максимальное количество документов, одновременно находящихся в памяти.
+     */
+    public XmlBatchProcessor(RuleSet ruleSet, ExecutorService executor, int maxDocumentsInMemory) {
+        if (maxDocumentsInMemory < 1) {
+            throw new IllegalArgumentException("maxDocumentsInMemory должно быть больше нуля.");
+        }
+        this.ruleSet = ruleSet;
+        this.executor = executor;
+        this.documentsInMemory = new Semaphore(maxDocumentsInMemory);
+    }
+
+    /**
+     * Подключает слушателя выполнения правил ко всем обрабатываемым документам.
+     * @param ruleListener слушатель, который может вызываться из разных потоков, или null.
+     * @return этот объект.
+     */
+    public XmlBatchProcessor setRuleListener(RuleListener ruleListener) {
+        this.ruleListener = ruleListener;
+        return this;
+    }
+
+    /**
+     * Создает пул из заданного количества обычных потоков.
+     * @param threads количество потоков.
+     * @return пул потоков.
+     */
+    public static ExecutorService newPlatformExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Создает пул, запускающий каждую задачу в виртуальном потоке. Если JVM не поддерживает виртуальные потоки,
+     * возвращает пул обычных потоков по количеству процессоров. Парсеры при этом все равно переиспользуются
+     * через пул процессора.
+     * @return пул потоков.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return newPlatformExecutor(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Возвращает xml-файлы по пути к каталогу или маске вида {@code каталог/*.xml}.
+     * @param directoryOrGlob каталог или маска.
+     * @return отсортированный по имени список файлов.
+     * @throws IOException
+     */
+    public static List<File> listFiles(String directoryOrGlob) throws IOException {
+        Path path = Paths.get(directoryOrGlob);
+        Path directory;
+        String glob;
+        if (Files.isDirectory(path)) {
+            directory = path;
+            glob = "*.xml";
+        } else {
+            directory = path.getParent() != null ? path.getParent() : Paths.get(".");
+            glob = path.getFileName().toString();
+        }
+        List<File> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file.toFile());
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Обрабатывает файлы. Метод блокируется, пока все файлы не будут обработаны.
+     * @param files xml-файлы.
+     * @param outputDirectory каталог для записи трансформированных файлов под теми же именами
+     *                        или null, если записывать результат не нужно.
+     * @return результаты обработки в порядке файлов.
+     * @throws InterruptedException
+     */
+    public List<Result> process(List<File> files, final File outputDirectory) throws InterruptedException {
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Не удалось создать каталог " + outputDirectory);
+        }
+        List<Future<Result>> futures = new ArrayList<>(files.size());
+        for (final File file : files) {
+            documentsInMemory.acquire();
+            try {
+                futures.add(executor.submit(() -> {
+                    try {
+                        return processFile(file, outputDirectory);
+                    } finally {
+                        documentsInMemory.release();
+                    }
+                }));
+            } catch (RuntimeException e) {
+                documentsInMemory.release();
+                throw e;
+            }
+        }
+        List<Result> results = new ArrayList<>(files.size());
+        for (int index = 0; index < futures.size(); index++) {
+            try {
+                results.add(futures.get(index).get());
+            } catch (ExecutionException e) {
+                results.add(new Result(files.get(index), false, null, e.getCause(), 0));
+            }
+        }
+        return results;
+    }
+
+    private Result processFile(File file, File outputDirectory) {
+        long start = System.nanoTime();
+        Parsers parsers = idleParsers.poll();
+        try {
+            if (parsers == null) {
+                parsers = new Parsers();
+            } else {
+                parsers.reset();
+            }
+            XmlFile xmlFile = new XmlFile(file, parsers.documentBuilder).setRuleListener(ruleListener);
+            ruleSet.applyTo(xmlFile);
+            if (outputDirectory != null) {
+                try (OutputStream outputStream = new BufferedOutputStream(
+                        new FileOutputStream(new File(outputDirectory, file.getName())))) {
+                    xmlFile.write(parsers.transformer, outputStream);
+                }
+            }
+            return new Result(file, xmlFile.isValid(), xmlFile.getValidationResults(), null,
+                    (System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            return new Result(file, false, null, e, (System.nanoTime() - start) / 1000000);
+        } finally {
+            if (parsers != null) {
+                idleParsers.offer(parsers);
+            }
+        }
+    }
+
+    /**
+     * Парсер и трансформер одной задачи.
+     */
+    private static class Parsers {
+        private final DocumentBuilder documentBuilder;
+        private final Transformer transformer;
+
+        private Parsers() throws ParserConfigurationException, TransformerConfigurationException {
+            this.documentBuilder = XmlFactories.newDocumentBuilder();
+            this.transformer = XmlFactories.newTransformer();
+        }
+
+        private void reset() {
+            documentBuilder.reset();
+            transformer.reset();
+        }
+    }
+
+    /**
+     * Результат обработки одного файла.
+     */
+    public static class Result {
+        private final File file;
+        private final boolean valid;
+        private final List<ValidationResult> validationResults;
+        private final Throwable error;
+        private final long durationMillis;
+
+        Result(File file, boolean valid, List<ValidationResult> validationResults, Throwable error,
+               long durationMillis) {
+            this.file = file;
+            this.valid = valid;
+            this.validationResults = validationResults;
+            this.error = error;
+            this.durationMillis = durationMillis;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Документ прочитан и прошел валидацию.
+         */
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Ошибки валидации или null, если документ не удалось обработать.
+         */
+        public List<ValidationResult> getValidationResults() {
+            return validationResults;
+        }
+
+        /**
+         * Лог валидации или null, если документ не удалось обработать. Текст собирается при каждом вызове.
+         */
+        public String getValidationLog() {
+            return validationResults == null ? null : XmlValidationLog.render(validationResults);
+        }
+
+        /**
+         * Ошибка чтения, трансформации или записи, либо null.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            String status = error != null ? "ОШИБКА: " + error : (valid ? "OK" : "НЕ ВАЛИДЕН");
+            return file.getName() + " - " + status + " (" + durationMillis + " мс)";
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.company;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+
+/**
+ * Кеш фабрик JAXP и созданных ими парсеров и трансформеров. Поиск реализации через newInstance() и создание
+ * парсера дороги по сравнению с обработкой маленького документа, поэтому фабрики создаются один раз,
+ * а DocumentBuilder и Transformer - один раз на поток и перед повторным использованием сбрасываются через reset().
+ * <p>
+ * Кеш по потокам полезен только для долгоживущих потоков пула. Виртуальный поток создается на каждую задачу,
+ * и парсер, созданный в нем, больше не используется, поэтому код, работающий в виртуальных потоках, должен
+ * брать парсеры из собственного пула ограниченного размера, как {@link XmlBatchProcessor}.
+ * <p>
+ * Обычные парсеры читают DTD и внешние сущности. Для документов из сети, см. {@link XmlTransformServer},
+ * есть отдельные безопасные парсеры: парсеры DOM не принимают DOCTYPE, парсеры StAX не читают DTD и внешние
+ * сущности. Ошибки разбора безопасные парсеры не печатают, а только бросают.
+ */
+public final class XmlFactories {
+
+    private static final String DISALLOW_DOCTYPE_FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
+
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+    private static final DocumentBuilderFactory SECURE_DOCUMENT_BUILDER_FACTORY = newSecureDocumentBuilderFactory();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+
+    /**
+     * Фабрики StAX потокобезопасны после настройки, поэтому используются всеми потоками.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLInputFactory SECURE_XML_INPUT_FACTORY = newSecureXmlInputFactory();
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory XML_EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    /**
+     * Не печатает ошибки разбора в stderr, как обработчик по умолчанию, а бросает их.
+     */
+    private static final ErrorHandler SILENT_ERROR_HANDLER = new ErrorHandler() {
+        @Override
+        public void warning(SAXParseException exception) {
+            //empty
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+    };
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = new ThreadLocal<>();
+    private static final ThreadLocal<DocumentBuilder> SECURE_DOCUMENT_BUILDERS = new ThreadLocal<>();
+    private static final ThreadLocal<Transformer> TRANSFORMERS = new ThreadLocal<>();
+    private static final ThreadLocal<SAXTransformerFactory> SAX_TRANSFORMER_FACTORIES = new ThreadLocal<>();
+
+    private XmlFactories() {
+        //empty
+    }
+
+    private static DocumentBuilderFactory newSecureDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        try {
+            factory.setFeature(DISALLOW_DOCTYPE_FEATURE, true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Парсер " + factory.getClass().getName()
+                    + " нельзя настроить безопасно.", e);
+        }
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        return factory;
+    }
+
+    private static XMLInputFactory newSecureXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Возвращает парсер текущего потока. Парсер нельзя передавать в другие потоки.
+     * @return сброшенный в исходное состояние парсер.
+     * @throws ParserConfigurationException
+     */
+    public static DocumentBuilder documentBuilder() throws ParserConfigurationException {
+        DocumentBuilder documentBuilder = DOCUMENT_BUILDERS.get();
+        if (documentBuilder == null) {
+            documentBuilder = newDocumentBuilder();
+            DOCUMENT_BUILDERS.set(documentBuilder);
+        } else {
+            documentBuilder.reset();
+        }
+        return documentBuilder;
+    }
+
+    /**
+     * Возвращает безопасный парсер текущего потока для документов из недоверенных источников: парсер
+     * не принимает DOCTYPE и не печатает ошибки разбора. Парсер нельзя передавать в другие потоки.
+     * @return сброшенный в исходное состояние парсер.
+     * @throws ParserConfigurationException
+     */
+    static DocumentBuilder secureDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder documentBuilder = SECURE_DOCUMENT_BUILDERS.get();
+        if (documentBuilder == null) {
+            synchronized (SECURE_DOCUMENT_BUILDER_FACTORY) {
+                documentBuilder = SECURE_DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            }
+            SECURE_DOCUMENT_BUILDERS.set(documentBuilder);
+        } else {
+            documentBuilder.reset();
+        }
+        //reset() возвращает обработчик ошибок по умолчанию
+        documentBuilder.setErrorHandler(SILENT_ERROR_HANDLER);
+        return documentBuilder;
+    }
+
+    /**
+     * Возвращает тождественный трансформер текущего потока. Трансформер нельзя передавать в другие потоки.
+     * @return сброшенный в исходное состояние трансформер.
+     * @throws TransformerConfigurationException
+     */
+    public static Transformer transformer() throws TransformerConfigurationException {
+        Transformer transformer = TRANSFORMERS.get();
+        if (transformer == null) {
+            transformer = newTransformer();
+            TRANSFORMERS.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        return transformer;
+    }
+
+    /**
+     * Создает новый парсер, не привязанный к потоку, для собственных пулов парсеров.
+     * @return новый парсер.
+     * @throws ParserConfigurationException
+     */
+    static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        //сама фабрика не потокобезопасна
+        synchronized (DOCUMENT_BUILDER_FACTORY) {
+            return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+        }
+    }
+
+    /**
+     * Создает новый тождественный трансформер, не привязанный к потоку.
+     * @return новый трансформер.
+     * @throws TransformerConfigurationException
+     */
+    static Transformer newTransformer() throws TransformerConfigurationException {
+        synchronized (TRANSFORMER_FACTORY) {
+            return TRANSFORMER_FACTORY.newTransformer();
+        }
+    }
+
+    /**
+     * Возвращает фабрику трансформеров текущего потока для компиляции xslt и сборки цепочек
+     * {@link javax.xml.transform.sax.TransformerHandler}. Фабрику нельзя передавать в другие потоки.
+     * @return фабрика, поддерживающая {@link SAXTransformerFactory#FEATURE}.
+     * @throws TransformerConfigurationException если реализация JAXP не поддерживает SAX-трансформеры.
+     */
+    static SAXTransformerFactory saxTransformerFactory() throws TransformerConfigurationException {
+        SAXTransformerFactory factory = SAX_TRANSFORMER_FACTORIES.get();
+        if (factory == null) {
+            TransformerFactory transformerFactory = TransformerFactory.newInstance();
+            if (!transformerFactory.getFeature(SAXTransformerFactory.FEATURE)) {
+                throw new TransformerConfigurationException("Фабрика " + transformerFactory.getClass().getName()
+                        + " не поддерживает SAX-трансформеры.");
+            }
+            factory = (SAXTransformerFactory) transformerFactory;
+            SAX_TRANSFORMER_FACTORIES.set(factory);
+        }
+        return factory;
+    }
+
+    static XMLInputFactory xmlInputFactory() {
+        return XML_INPUT_FACTORY;
+    }
+
+    /**
+     * Фабрика StAX для документов из недоверенных источников: читатели не обрабатывают DTD и внешние сущности.
+     * @return общая для всех потоков фабрика.
+     */
+    static XMLInputFactory secureXmlInputFactory() {
+        return SECURE_XML_INPUT_FACTORY;
+    }
+
+    static XMLOutputFactory xmlOutputFactory() {
+        return XML_OUTPUT_FACTORY;
+    }
+
+    static XMLEventFactory xmlEventFactory() {
+        return XML_EVENT_FACTORY;
+    }
+}
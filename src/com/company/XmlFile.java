@@ -1,19 +1,33 @@
 package com.company;
 
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -22,6 +36,11 @@ import java.util.regex.Pattern;
  */
 public class XmlFile {
 
+    /**
+     * Размер буфера при записи документа.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * Загруженный xml-документ.
      */
@@ -35,7 +54,22 @@ public class XmlFile {
     /**
      * Лист хранящий правила трансформации и валидации для последующего запуска.
      */
-    private List<Rules> rulesList;
+    private List<RuleDefinition> rulesList;
+
+    /**
+     * Слушатель выполнения правил или null, если измерения выключены.
+     */
+    private RuleListener ruleListener;
+
+    /**
+     * Время разбора документа в наносекундах или -1, если оно неизвестно или уже передано слушателю.
+     */
+    private long parseNanos = -1;
+
+    /**
+     * Имена нод для путей в ошибках валидации во время прохода {@link RulePlan} или null.
+     */
+    private NodeNames nodeNames;
 
     /**
      * Конструктор.
@@ -45,10 +79,86 @@ public class XmlFile {
      * @throws SAXException
      */
     public XmlFile(File file) throws ParserConfigurationException, IOException, SAXException {
+        this(file, XmlFactories.documentBuilder());
+    }
+
+    /**
+     * Конструктор, использующий заданный парсер. DocumentBuilder не потокобезопасен, поэтому один экземпляр
+     * нельзя одновременно передавать в конструкторы из разных потоков.
+     * @param file на загруженный xml-файл
+     * @param documentBuilder парсер xml-документа.
+     * @throws IOException
+     * @throws SAXException
+     */
+    public XmlFile(File file, DocumentBuilder documentBuilder) throws IOException, SAXException {
+        this(XmlInput.of(file), documentBuilder);
+    }
+
+    /**
+     * Конструктор. Большой файл отображается в память, сжатый gzip или zip файл распаковывается на лету.
+     * @param path путь к xml-файлу.
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public XmlFile(Path path) throws ParserConfigurationException, IOException, SAXException {
+        this(XmlInput.of(path), XmlFactories.documentBuilder());
+    }
+
+    /**
+     * Конструктор, читающий xml-документ из источника: файла, потока, буфера или массива байт.
+     * @param xmlInput источник xml-документа.
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public XmlFile(XmlInput xmlInput) throws ParserConfigurationException, IOException, SAXException {
+        this(xmlInput, XmlFactories.documentBuilder());
+    }
+
+    /**
+     * Конструктор, читающий xml-документ из источника заданным парсером.
+     * @param xmlInput источник xml-документа.
+     * @param documentBuilder парсер xml-документа.
+     * @throws IOException
+     * @throws SAXException
+     */
+    public XmlFile(XmlInput xmlInput, DocumentBuilder documentBuilder) throws IOException, SAXException {
+        this(ParsedDocument.parse(xmlInput, documentBuilder));
+    }
+
+    /**
+     * Конструктор, читающий xml-документ из потока. Поток не закрывается.
+     * @param inputStream поток с xml-документом.
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public XmlFile(InputStream inputStream) throws ParserConfigurationException, IOException, SAXException {
+        this(inputStream, XmlFactories.documentBuilder());
+    }
+
+    /**
+     * Конструктор, читающий xml-документ из потока заданным парсером. Поток не закрывается.
+     * @param inputStream поток с xml-документом.
+     * @param documentBuilder парсер xml-документа.
+     * @throws IOException
+     * @throws SAXException
+     */
+    public XmlFile(InputStream inputStream, DocumentBuilder documentBuilder) throws IOException, SAXException {
+        this(ParsedDocument.parse(documentBuilder, new InputSource(inputStream)));
+    }
 
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        Document downloadedXML = documentBuilder.parse(file);
+    private XmlFile(ParsedDocument parsedDocument) {
+        this(parsedDocument.document);
+        parseNanos = parsedDocument.nanos;
+    }
+
+    /**
+     * Конструктор для уже загруженного документа.
+     * @param downloadedXML xml-документ.
+     */
+    XmlFile(Document downloadedXML) {
         downloadedXML.getDocumentElement().normalize();
         rulesList = new ArrayList<>();
         this.downloadedXML = downloadedXML;
@@ -60,13 +170,152 @@ public class XmlFile {
      * @throws Exception
      */
     public void write() throws Exception {
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
+        Transformer transformer = XmlFactories.transformer();
         DOMSource source = new DOMSource(downloadedXML);
         StreamResult consoleResult = new StreamResult(System.out);
         transformer.transform(source, consoleResult);
     }
 
+    /**
+     * Метод записывающий xml-файл в поток с помощью заданного трансформера. Поток не закрывается.
+     * @param transformer трансформер, не используемый одновременно другими потоками.
+     * @param outputStream поток для записи.
+     * @throws TransformerException
+     */
+    public void write(Transformer transformer, OutputStream outputStream) throws TransformerException {
+        long start = ruleListener == null ? 0 : System.nanoTime();
+        transformer.transform(new DOMSource(downloadedXML), new StreamResult(outputStream));
+        serialized(start);
+    }
+
+    /**
+     * Метод записывающий xml-файл в поток в кодировке UTF-8. Поток не закрывается.
+     * @param outputStream поток для записи.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public void write(OutputStream outputStream) throws TransformerException, IOException {
+        write(outputStream, new OutputOptions());
+    }
+
+    /**
+     * Метод записывающий xml-файл в поток с заданными параметрами. Поток не закрывается.
+     * @param outputStream поток для записи.
+     * @param options параметры записи.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public void write(OutputStream outputStream, OutputOptions options) throws TransformerException, IOException {
+        long start = ruleListener == null ? 0 : System.nanoTime();
+        if (options.isFastSerializer()) {
+            Charset charset = Charset.forName(options.getEncoding());
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, charset), BUFFER_SIZE);
+            DomSerializer.write(downloadedXML, writer, options, charset);
+            writer.flush();
+        } else {
+            configuredTransformer(options).transform(new DOMSource(downloadedXML), new StreamResult(outputStream));
+        }
+        serialized(start);
+    }
+
+    /**
+     * Метод записывающий xml-файл в Writer. Writer не закрывается.
+     * @param writer приемник текста.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public void write(Writer writer) throws TransformerException, IOException {
+        write(writer, new OutputOptions());
+    }
+
+    /**
+     * Метод записывающий xml-файл в Writer с заданными параметрами. Кодировка из параметров попадает только
+     * в xml-декларацию. Writer не закрывается.
+     * @param writer приемник текста.
+     * @param options параметры записи.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public void write(Writer writer, OutputOptions options) throws TransformerException, IOException {
+        long start = ruleListener == null ? 0 : System.nanoTime();
+        if (options.isFastSerializer()) {
+            DomSerializer.write(downloadedXML, writer, options, null);
+            writer.flush();
+        } else {
+            configuredTransformer(options).transform(new DOMSource(downloadedXML), new StreamResult(writer));
+        }
+        serialized(start);
+    }
+
+    private void serialized(long start) {
+        if (ruleListener != null) {
+            ruleListener.documentSerialized(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Метод записывающий xml-файл в файл по пути path через буферизированный канал. Существующий файл перезаписывается.
+     * @param path путь к файлу.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public void write(Path path) throws TransformerException, IOException {
+        write(path, new OutputOptions());
+    }
+
+    /**
+     * Метод записывающий xml-файл в файл по пути path с заданными параметрами.
+     * @param path путь к файлу.
+     * @param options параметры записи.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public void write(Path path, OutputOptions options) throws TransformerException, IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+            write(outputStream, options);
+        }
+    }
+
+    /**
+     * Возвращает xml-файл в виде массива байт в кодировке UTF-8.
+     * @return содержимое документа.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws TransformerException, IOException {
+        return toByteArray(new OutputOptions());
+    }
+
+    /**
+     * Возвращает xml-файл в виде массива байт, записанного с заданными параметрами.
+     * @param options параметры записи.
+     * @return содержимое документа.
+     * @throws TransformerException
+     * @throws IOException
+     */
+    public byte[] toByteArray(OutputOptions options) throws TransformerException, IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(BUFFER_SIZE);
+        write(outputStream, options);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Трансформер текущего потока, настроенный по параметрам записи.
+     */
+    private static Transformer configuredTransformer(OutputOptions options) throws TransformerException {
+        Transformer transformer = XmlFactories.transformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, options.getEncoding());
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, options.isOmitXmlDeclaration() ? "yes" : "no");
+        if (options.isIndent()) {
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount",
+                    String.valueOf(options.getIndentAmount()));
+        }
+        return transformer;
+    }
+
     /**
      * Возвращает лог валидации xml-документа.
      * @return все сообщений из лога в виде одной строки.
@@ -83,20 +332,125 @@ public class XmlFile {
         return validationLog.isValid();
     }
 
+    /**
+     * Возвращает ошибки валидации в порядке их обнаружения.
+     * @return неизменяемый список ошибок, не длиннее заданного максимума.
+     */
+    public List<ValidationResult> getValidationResults() {
+        return validationLog.getResults();
+    }
+
+    /**
+     * Задает количество ошибок, после которого правила валидации перестают проверять документ.
+     * По умолчанию количество ошибок не ограничено. Значение 1 дает быструю проверку до первой ошибки.
+     * @param maxErrors максимальное количество ошибок.
+     * @return этот xml-документ.
+     */
+    public XmlFile setMaxValidationErrors(int maxErrors) {
+        validationLog.setMaxErrors(maxErrors);
+        return this;
+    }
+
+    /**
+     * Возвращает загруженный xml-документ.
+     * @return документ, к которому применяются правила.
+     */
+    Document getDocument() {
+        return downloadedXML;
+    }
+
+    /**
+     * Подключает слушателя выполнения правил и записи документа. Время разбора документа передается
+     * слушателю сразу при первом подключении.
+     * @param ruleListener слушатель или null, чтобы выключить измерения.
+     * @return этот документ.
+     */
+    public XmlFile setRuleListener(RuleListener ruleListener) {
+        this.ruleListener = ruleListener;
+        if (ruleListener != null && parseNanos >= 0) {
+            ruleListener.documentParsed(parseNanos);
+            parseNanos = -1;
+        }
+        return this;
+    }
+
+    RuleListener getRuleListener() {
+        return ruleListener;
+    }
+
+    XmlValidationLog getLog() {
+        return validationLog;
+    }
+
+    /**
+     * Задает имена нод для путей в ошибках валидации, см. {@link #locationOf(Node)}.
+     * @param nodeNames имена нод или null, чтобы использовать их текущие имена.
+     */
+    void setNodeNames(NodeNames nodeNames) {
+        this.nodeNames = nodeNames;
+    }
+
+    /**
+     * Путь к ноде для ошибки валидации. Если правила выполняются за один проход и часть нод еще не обработана,
+     * путь строит {@link NodeNames}, чтобы он совпадал с путем при выполнении правил по одному.
+     * @param node проверяемая нода.
+     * @return путь вида {@code /root/Document/item[2]}.
+     */
+    String locationOf(Node node) {
+        return nodeNames == null ? AbstractRunnableRule.locationOf(node) : nodeNames.locationOf(node);
+    }
+
+    NodeNames getNodeNames() {
+        return nodeNames;
+    }
+
+    /**
+     * Создает ошибку валидации ноды с путем к ней, см. {@link #locationOf(Node)}. Документы, которые являются
+     * частью другого документа, переопределяют метод, чтобы путь считался от корня всего документа.
+     * @param error вид ошибки.
+     * @param node проверяемая нода.
+     * @param referenceTagName имя тега, с которым шла сверка, или null.
+     * @param text текст ноды.
+     * @return ошибка валидации.
+     */
+    ValidationResult validationResult(ValidationError error, Node node, String referenceTagName, String text) {
+        return new ValidationResult(error, node.getNodeName(), referenceTagName, locationOf(node), text);
+    }
+
+    /**
+     * Имена нод на момент выполнения текущего правила.
+     */
+    interface NodeNames {
+        /**
+         * @param node нода документа.
+         * @return имя, которое нода имела бы, если бы все предыдущие правила уже были применены ко всему документу.
+         */
+        String nameOf(Node node);
+
+        /**
+         * @return номер выполняемого правила в плане.
+         */
+        int ruleIndex();
+
+        /**
+         * @param node проверяемая нода.
+         * @return путь к ноде, в котором имена предков и соседей берутся из {@link #nameOf(Node)}.
+         */
+        String locationOf(Node node);
+    }
+
     /**
      * Запуск добавленных правил трансформации и валидации.
      */
     public void execute() {
-        for(XmlFile.Rules rule : rulesList) {
-            rule.runRule();
-        }
+        new RulePlan(rulesList).execute(this);
         rulesList = new ArrayList<>();
     }
 
     /**
      * Ошибки валидации.
      */
-    enum ValidationError {
+    public enum ValidationError {
         TYPE_ERROR("Тип не соответствует заданному. Ошибка в теге: %s."),
         CROSS_VALIDATION_ERROR("Значения %s и %s не совпадают.");
 
@@ -115,38 +469,6 @@ public class XmlFile {
         }
     }
 
-    /**
-     * Лог для валидации xml-документа.
-     */
-    private class XmlValidationLog {
-        private Set<String> buffer;
-        private boolean valid;
-
-        private XmlValidationLog() {
-            buffer = new HashSet<>();
-            valid = true;
-        }
-
-        public void addLogMessage(String logMessage) {
-            buffer.add(logMessage);
-            valid = false;
-        }
-
-        public String getValidationLog() {
-            StringBuffer temp = new StringBuffer();
-            for(String message : buffer) {
-                temp.append(message);
-                temp.append("\n");
-            }
-            return temp.toString();
-        }
-
-        public boolean isValid() {
-            return valid;
-        }
-    }
-
-
         /*                                                                         */
         /* Методы позволяющие получить правила трансформации и валидации XML-файла */
         /*                                                                         */
@@ -158,7 +480,7 @@ public class XmlFile {
      * @return этот xml-документ.
      */
     public XmlFile changeNodeName(String targetNodeName, String nodeNewName){
-        rulesList.add(new ChangeNodeNameRule(targetNodeName, nodeNewName));
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.CHANGE_NODE_NAME, targetNodeName, nodeNewName));
         return this;
     }
 
@@ -169,7 +491,7 @@ public class XmlFile {
      * @return этот xml-документ.
      */
     public XmlFile addNewNode(String targetNodeName, String newNodeName) {
-        rulesList.add(new AddNewNodeRule(targetNodeName, newNodeName));
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.ADD_NEW_NODE, targetNodeName, newNodeName));
         return this;
     }
 
@@ -183,7 +505,7 @@ public class XmlFile {
      * @return этот xml-документ.
      */
     public XmlFile changeRootTag(String targetNodeName, String newParentNodeName) {
-        rulesList.add(new ChangeRootTagRule(targetNodeName, newParentNodeName));
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.CHANGE_ROOT_TAG, targetNodeName, newParentNodeName));
         return this;
     }
 
@@ -194,7 +516,8 @@ public class XmlFile {
      * @return этот xml-документ.
      */
     public XmlFile addNewTextNode(String targetTextNodeName, String newNodeTextName) {
-        rulesList.add(new AddNewTextNodeRule(targetTextNodeName, newNodeTextName));
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.ADD_NEW_TEXT_NODE, targetTextNodeName,
+                newNodeTextName));
         return this;
     }
 
@@ -205,7 +528,7 @@ public class XmlFile {
      * @return этот xml-документ.
      */
     public XmlFile typeValidation(String targetTextNodeName, String pattern) {
-        rulesList.add(new TypeValidationRule(targetTextNodeName, pattern));
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.TYPE_VALIDATION, targetTextNodeName, pattern));
         return this;
     }
 
@@ -216,35 +539,96 @@ public class XmlFile {
      * @return этот xml-документ.
      */
     public XmlFile crossValidation(String targetTextNodeName, String fromTextNodeName) {
-        rulesList.add(new CrossValidationRule(targetTextNodeName, fromTextNodeName));
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.CROSS_VALIDATION, targetTextNodeName,
+                fromTextNodeName));
         return this;
     }
 
+    /**
+     * Создает правило по его описанию.
+     * @param definition описание правила.
+     * @return правило, не привязанное к конкретному документу.
+     */
+    static Rules createRule(RuleDefinition definition) {
+        String targetNodeName = definition.getTargetNodeName();
+        String argument = definition.getArgument();
+        switch (definition.getKind()) {
+            case CHANGE_NODE_NAME:
+                return new ChangeNodeNameRule(targetNodeName, argument);
+            case ADD_NEW_NODE:
+                return new AddNewNodeRule(targetNodeName, argument);
+            case CHANGE_ROOT_TAG:
+                return new ChangeRootTagRule(targetNodeName, argument);
+            case ADD_NEW_TEXT_NODE:
+                return new AddNewTextNodeRule(targetNodeName, argument);
+            case TYPE_VALIDATION:
+                return new TypeValidationRule(targetNodeName, argument);
+            case CROSS_VALIDATION:
+                return new CrossValidationRule(targetNodeName, argument);
+            default:
+                throw new IllegalArgumentException("Неизвестный вид правила: " + definition.getKind());
+        }
+    }
+
+    /**
+     * Разобранный документ вместе со временем разбора.
+     */
+    private static final class ParsedDocument {
+        private final Document document;
+        private final long nanos;
+
+        private ParsedDocument(Document document, long nanos) {
+            this.document = document;
+            this.nanos = nanos;
+        }
+
+        private static ParsedDocument parse(XmlInput xmlInput, DocumentBuilder documentBuilder)
+                throws IOException, SAXException {
+            InputSource inputSource = xmlInput.openInputSource();
+            try {
+                return parse(documentBuilder, inputSource);
+            } finally {
+                inputSource.getByteStream().close();
+            }
+        }
+
+        private static ParsedDocument parse(DocumentBuilder documentBuilder, InputSource inputSource)
+                throws IOException, SAXException {
+            long start = System.nanoTime();
+            Document document = documentBuilder.parse(inputSource);
+            return new ParsedDocument(document, System.nanoTime() - start);
+        }
+    }
+
         /*                                                                         */
         /*              Правила для трансформации и валидации XML-файла.           */
         /*                                                                         */
 
     /**
-     * Общий интерфейс для всех правил.
+     * Общий интерфейс для всех правил. Правила не хранят состояние документа, документ передается при запуске,
+     * поэтому один экземпляр правила можно применять к разным документам, в том числе одновременно.
      */
     interface Rules {
         /**
          * Метод должен содержать обработку выбранной ноды.
+         * @param xmlFile документ, к которому применяется правило.
          * @param node
+         * @return нода, которая находится в документе на месте обработанной ноды после применения правила.
          */
-        void apply(Node node);
+        Node apply(XmlFile xmlFile, Node node);
 
         /**
          * Метод для запуска правила.
+         * @param xmlFile документ, к которому применяется правило.
          */
-        void runRule();
+        void runRule(XmlFile xmlFile);
     }
 
     /**
      * Абстрактный класс для правил. Содержит код запуска правил и хранит имя выбранного тега XML-документа.
      */
-    abstract class AbstractRunnableRule implements Rules {
-        private String targetNodeName;
+    abstract static class AbstractRunnableRule implements Rules {
+        private final String targetNodeName;
 
         public AbstractRunnableRule(String targetNodeName) {
             this.targetNodeName = targetNodeName;
@@ -255,21 +639,117 @@ public class XmlFile {
         }
 
         @Override
-        public abstract void apply(Node node);
+        public abstract Node apply(XmlFile xmlFile, Node node);
+
+        /**
+         * Может ли правило выполняться для каждой ноды независимо от остального документа.
+         * Такие правила объединяются в один проход по документу.
+         * @return true, если правило меняет или читает только саму ноду и ее содержимое.
+         */
+        public boolean isLocal() {
+            return true;
+        }
+
+        /**
+         * Имя тега, который создает правило.
+         * @return имя нового тега или null, если правило новых тегов не создает.
+         */
+        public String getCreatedNodeName() {
+            return null;
+        }
+
+        /**
+         * Новое имя, которое правило дает ноде.
+         * @return новое имя или null, если правило ноду не переименовывает.
+         */
+        public String getRenamedNodeName() {
+            return null;
+        }
+
+        /**
+         * Заменяет ли правило все содержимое ноды.
+         * @return true, если после применения правила прежних дочерних нод не останется.
+         */
+        public boolean replacesContent() {
+            return false;
+        }
+
+        /**
+         * Является ли правило правилом валидации. Такие правила документ не меняют.
+         * @return true для правил валидации.
+         */
+        public boolean isValidation() {
+            return false;
+        }
 
         @Override
-        public void runRule() {
-            NodeList applyingNodes = downloadedXML.getElementsByTagName(targetNodeName);
-            if (applyingNodes.getLength() > 0) {
-                for (int index = applyingNodes.getLength() - 1; index >= 0; index--) {
-                    apply(applyingNodes.item(index));
+        public void runRule(XmlFile xmlFile) {
+            if (isValidation()) {
+                List<Node> applyingNodes = toList(xmlFile.downloadedXML.getElementsByTagName(targetNodeName));
+                for (int index = 0; index < applyingNodes.size() && !xmlFile.validationLog.isLimitReached(); index++) {
+                    apply(xmlFile, applyingNodes.get(index));
+                }
+                return;
+            }
+            //список getElementsByTagName живой и после каждого изменения документа перестраивается,
+            //поэтому ноды сначала копируются
+            List<Node> applyingNodes = toList(xmlFile.downloadedXML.getElementsByTagName(targetNodeName));
+            for (int index = applyingNodes.size() - 1; index >= 0; index--) {
+                apply(xmlFile, applyingNodes.get(index));
+            }
+        }
+
+        /**
+         * Путь к ноде в виде, похожем на XPath: имена тегов от корня и номер среди одноименных соседей,
+         * если он больше первого.
+         */
+        static String locationOf(Node node) {
+            Deque<String> steps = new ArrayDeque<>();
+            for (Node current = node; current != null && current.getNodeType() == Node.ELEMENT_NODE;
+                 current = current.getParentNode()) {
+                String name = current.getNodeName();
+                int position = positionOf(current, name, null);
+                steps.push(position > 1 ? name + "[" + position + "]" : name);
+            }
+            StringBuilder location = new StringBuilder();
+            for (String step : steps) {
+                location.append('/').append(step);
+            }
+            return location.toString();
+        }
+
+        /**
+         * Номер ноды среди предыдущих соседей с тем же именем, начиная с 1.
+         * @param node нода.
+         * @param name имя ноды.
+         * @param nodeNames имена соседей или null, если нужны их текущие имена.
+         */
+        static int positionOf(Node node, String name, NodeNames nodeNames) {
+            int position = 1;
+            for (Node sibling = node.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+                if (sibling.getNodeType() == Node.ELEMENT_NODE && name.equals(nodeNames == null
+                        ? sibling.getNodeName() : nodeNames.nameOf(sibling))) {
+                    position++;
                 }
             }
+            return position;
+        }
+
+        /**
+         * Копирует ноды из живого списка за один проход.
+         */
+        static List<Node> toList(NodeList nodeList) {
+            int length = nodeList.getLength();
+            List<Node> nodes = new ArrayList<>(length);
+            for (int index = 0; index < length; index++) {
+                nodes.add(nodeList.item(index));
+            }
+            return nodes;
         }
     }
 
-    private class ChangeNodeNameRule extends AbstractRunnableRule {
-        private String nodeNewName;
+    private static class ChangeNodeNameRule extends AbstractRunnableRule {
+        private final String nodeNewName;
 
         private ChangeNodeNameRule(String targetNodeName, String nodeNewName) {
             super(targetNodeName);
@@ -277,20 +757,30 @@ public class XmlFile {
         }
 
         @Override
-        public void apply(Node node) {
-            Node temp = downloadedXML.createElement(nodeNewName);
+        public Node apply(XmlFile xmlFile, Node node) {
+            try {
+                //нода переименовывается на месте, вместе с атрибутами и содержимым
+                return xmlFile.downloadedXML.renameNode(node, null, nodeNewName);
+            } catch (DOMException e) {
+                //реализация DOM не умеет переименовывать ноды, поэтому переносим содержимое в новую ноду
+            }
+            Node temp = xmlFile.downloadedXML.createElement(nodeNewName);
             node.getParentNode().replaceChild(temp, node);
-            if (node.hasChildNodes()) {
-                NodeList childNodeList = node.getChildNodes();
-                for(int index = 0; childNodeList.getLength() > 0 ; ) {
-                    temp.appendChild(childNodeList.item(index));
-                }
+            Node child;
+            while ((child = node.getFirstChild()) != null) {
+                temp.appendChild(child);
             }
+            return temp;
+        }
+
+        @Override
+        public String getRenamedNodeName() {
+            return nodeNewName;
         }
     }
 
-    private class AddNewNodeRule extends AbstractRunnableRule {
-        private String newNodeName;
+    private static class AddNewNodeRule extends AbstractRunnableRule {
+        private final String newNodeName;
 
         private AddNewNodeRule(String addToNodeName, String newNodeName) {
             super(addToNodeName);
@@ -298,14 +788,20 @@ public class XmlFile {
         }
 
         @Override
-        public void apply(Node node) {
-            Node temp = downloadedXML.createElement(newNodeName);
+        public Node apply(XmlFile xmlFile, Node node) {
+            Node temp = xmlFile.downloadedXML.createElement(newNodeName);
             node.appendChild(temp);
+            return node;
+        }
+
+        @Override
+        public String getCreatedNodeName() {
+            return newNodeName;
         }
     }
 
-    private class ChangeRootTagRule extends AbstractRunnableRule {
-        private String newParentNodeName;
+    private static class ChangeRootTagRule extends AbstractRunnableRule {
+        private final String newParentNodeName;
 
         private ChangeRootTagRule(String targetNodeName, String newParentNodeName) {
             super(targetNodeName);
@@ -313,53 +809,55 @@ public class XmlFile {
         }
 
         @Override
-        public void apply(Node node) {
-            NodeList parentNodes = downloadedXML.getElementsByTagName(newParentNodeName);
-            if (parentNodes.getLength() == 1) {
-                if (node.hasChildNodes()) {
-                    NodeList childNodeList = node.getChildNodes();
-                    Node parentNode = downloadedXML.getElementsByTagName(newParentNodeName).item(0);
-                    Node tempNode = downloadedXML.createElement(node.getNodeName());
-                    for (int index = 0; childNodeList.getLength() > 0; ) {
-                        tempNode.appendChild(childNodeList.item(index));
-                    }
-                    parentNode.appendChild(tempNode);
-                    node.getParentNode().removeChild(node);
-                }
+        public boolean isLocal() {
+            return false;
+        }
+
+        @Override
+        public void runRule(XmlFile xmlFile) {
+            //родительские ноды ищутся один раз на весь запуск правила
+            List<Node> parentNodes = toList(xmlFile.downloadedXML.getElementsByTagName(newParentNodeName));
+            List<Node> applyingNodes = toList(xmlFile.downloadedXML.getElementsByTagName(getTargetNodeName()));
+            for (int index = applyingNodes.size() - 1; index >= 0; index--) {
+                relocate(applyingNodes.get(index), parentNodes);
+            }
+        }
+
+        @Override
+        public Node apply(XmlFile xmlFile, Node node) {
+            relocate(node, toList(xmlFile.downloadedXML.getElementsByTagName(newParentNodeName)));
+            return node;
+        }
+
+        /**
+         * Переносит ноду целиком, вместе с содержимым, в одну из родительских нод. Пустые ноды не переносятся.
+         */
+        private void relocate(Node node, List<Node> parentNodes) {
+            if (!node.hasChildNodes()) {
+                return;
             }
-            for (int parentIndex = parentNodes.getLength() - 1; parentIndex >= 0; parentIndex--) {
-                Node parentNode = parentNodes.item(parentIndex);
+            if (parentNodes.size() == 1) {
+                parentNodes.get(0).appendChild(node);
+                return;
+            }
+            for (int parentIndex = parentNodes.size() - 1; parentIndex >= 0; parentIndex--) {
+                Node parentNode = parentNodes.get(parentIndex);
                 if(parentNode.hasChildNodes()) {
                     if (parentNode.getLastChild() != null &&
                             !parentNode.getLastChild().getNodeName().equals(node.getNodeName())) {
-                        if (node.hasChildNodes()) {
-                            NodeList childNodeList = node.getChildNodes();
-                            Node tempNode = downloadedXML.createElement(node.getNodeName());
-                            for (int index = 0; childNodeList.getLength() > 0; ) {
-                                tempNode.appendChild(childNodeList.item(index));
-                            }
-                            parentNode.appendChild(tempNode);
-                            node.getParentNode().removeChild(node);
-                        }
-                        break;
+                        parentNode.appendChild(node);
+                        return;
                     }
                 } else {
-                    if (node.hasChildNodes()) {
-                        NodeList childNodeList = node.getChildNodes();
-                        Node tempNode = downloadedXML.createElement(node.getNodeName());
-                        for (int index = 0; childNodeList.getLength() > 0; ) {
-                            tempNode.appendChild(childNodeList.item(index));
-                        }
-                        parentNode.appendChild(tempNode);
-                        node.getParentNode().removeChild(node);
-                    }
+                    parentNode.appendChild(node);
+                    return;
                 }
             }
         }
     }
 
-    private class AddNewTextNodeRule extends AbstractRunnableRule {
-        private String newTextTag;
+    private static class AddNewTextNodeRule extends AbstractRunnableRule {
+        private final String newTextTag;
 
         private AddNewTextNodeRule(String targetTextNodeName, String newNodeTextName) {
             super(targetTextNodeName);
@@ -367,32 +865,53 @@ public class XmlFile {
         }
 
         @Override
-        public void apply(Node node) {
-            Node temp = downloadedXML.createElement(newTextTag);
+        public Node apply(XmlFile xmlFile, Node node) {
+            Node temp = xmlFile.downloadedXML.createElement(newTextTag);
             temp.setTextContent(node.getTextContent());
             node.setTextContent("");
             node.appendChild(temp);
+            return node;
+        }
+
+        @Override
+        public String getCreatedNodeName() {
+            return newTextTag;
+        }
+
+        @Override
+        public boolean replacesContent() {
+            return true;
         }
     }
 
-    private class TypeValidationRule extends AbstractRunnableRule {
-        private String pattern;
+    private static class TypeValidationRule extends AbstractRunnableRule {
+        private final Pattern pattern;
 
         private TypeValidationRule(String targetTextNodeName, String pattern) {
             super(targetTextNodeName);
-            this.pattern = pattern;
+            this.pattern = PatternCache.get(pattern);
+        }
+
+        @Override
+        public boolean isValidation() {
+            return true;
         }
 
         @Override
-        public void apply(Node node) {
-            if(!Pattern.matches(pattern, node.getTextContent())) {
-                validationLog.addLogMessage(ValidationError.TYPE_ERROR.getMessage(node.getNodeName()));
+        public Node apply(XmlFile xmlFile, Node node) {
+            if (xmlFile.validationLog.isLimitReached()) {
+                return node;
             }
+            String text = node.getTextContent();
+            if(!pattern.matcher(text).matches()) {
+                xmlFile.validationLog.addResult(xmlFile.validationResult(ValidationError.TYPE_ERROR, node, null, text));
+            }
+            return node;
         }
     }
 
-    private class CrossValidationRule extends AbstractRunnableRule {
-        private String fromTextNodeName;
+    private static class CrossValidationRule extends AbstractRunnableRule {
+        private final String fromTextNodeName;
 
         private CrossValidationRule(String targetTextNodeName, String fromTextNodeName) {
             super(targetTextNodeName);
@@ -400,15 +919,51 @@ public class XmlFile {
         }
 
         @Override
-        public void apply(Node node) {
-            String textToFound = downloadedXML.getElementsByTagName(fromTextNodeName)
-                    .item(0).getTextContent();
-            if(!Pattern.matches(".*"+textToFound+".*", node.getTextContent())) {
-                validationLog.addLogMessage(ValidationError.CROSS_VALIDATION_ERROR
-                        .getMessage(fromTextNodeName, node.getNodeName()));
+        public boolean isLocal() {
+            return false;
+        }
+
+        @Override
+        public boolean isValidation() {
+            return true;
+        }
+
+        @Override
+        public void runRule(XmlFile xmlFile) {
+            String textToFound = findTextToFound(xmlFile);
+            NodeList applyingNodes = xmlFile.downloadedXML.getElementsByTagName(getTargetNodeName());
+            //документ не меняется, поэтому ноды проверяются в порядке документа
+            for (int index = 0; index < applyingNodes.getLength() && !xmlFile.validationLog.isLimitReached(); index++) {
+                check(xmlFile, applyingNodes.item(index), textToFound);
             }
+        }
 
+        @Override
+        public Node apply(XmlFile xmlFile, Node node) {
+            check(xmlFile, node, findTextToFound(xmlFile));
+            return node;
+        }
+
+        /**
+         * Текст первого тега fromTextNodeName, с которым идет сверка.
+         * @param xmlFile документ, в котором ищется тег.
+         * @return текст тега или null, если такого тега в документе нет.
+         */
+        private String findTextToFound(XmlFile xmlFile) {
+            NodeList fromNodes = xmlFile.downloadedXML.getElementsByTagName(fromTextNodeName);
+            return fromNodes.getLength() > 0 ? fromNodes.item(0).getTextContent() : null;
+        }
+
+        private void check(XmlFile xmlFile, Node node, String textToFound) {
+            if (xmlFile.validationLog.isLimitReached()) {
+                return;
+            }
+            String text = node.getTextContent();
+            if(textToFound == null || !text.contains(textToFound)) {
+                xmlFile.validationLog.addResult(xmlFile.validationResult(ValidationError.CROSS_VALIDATION_ERROR,
+                        node, fromTextNodeName, text));
+            }
         }
     }
 
-}
\ No newline at end of file
+}
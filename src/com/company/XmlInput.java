@@ -0,0 +1,395 @@
+package com.company;
+
+import org.xml.sax.InputSource;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Источник xml-документа: файл, поток, {@link ByteBuffer} или массив байт. Большие файлы не читаются через
+ * буферизованные потоки, а отображаются в память через {@link FileChannel#map}; файлы больше 2 Гб отображаются
+ * по частям. Сжатые gzip и zip источники распознаются по первым байтам и распаковываются на лету, без временных
+ * файлов.
+ */
+public final class XmlInput {
+
+    /**
+     * Файлы меньше этого размера читаются обычным потоком: отображение маленьких файлов обходится дороже чтения.
+     */
+    static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Размер одной отображаемой части файла.
+     */
+    static final int MAP_CHUNK_SIZE = 1 << 30;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final InputStream inputStream;
+    private final ByteBuffer byteBuffer;
+
+    private XmlInput(Path path, InputStream inputStream, ByteBuffer byteBuffer) {
+        this.path = path;
+        this.inputStream = inputStream;
+        this.byteBuffer = byteBuffer;
+    }
+
+    public static XmlInput of(Path path) {
+        return new XmlInput(path, null, null);
+    }
+
+    public static XmlInput of(File file) {
+        return new XmlInput(file.toPath(), null, null);
+    }
+
+    /**
+     * Источник из потока. Поток читается один раз и закрывается вместе с потоком из {@link #openStream()}.
+     */
+    public static XmlInput of(InputStream inputStream) {
+        return new XmlInput(null, inputStream, null);
+    }
+
+    /**
+     * Источник из буфера. Читаются байты от текущей позиции до границы; сам буфер не меняется.
+     */
+    public static XmlInput of(ByteBuffer byteBuffer) {
+        return new XmlInput(null, null, byteBuffer);
+    }
+
+    public static XmlInput of(byte[] bytes) {
+        return new XmlInput(null, null, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Открывает поток с xml-документом. Сжатый gzip источник распаковывается, из zip-архива читается
+     * первый файл; чтобы прочитать все файлы архива, используйте {@link #forEachEntry(EntryHandler)}.
+     * @return поток, который нужно закрыть после чтения.
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        InputStream raw = openRaw();
+        try {
+            Compression compression = detectCompression(raw);
+            if (compression == Compression.ZIP) {
+                ZipInputStream zipInputStream = new ZipInputStream(raw);
+                if (nextFileEntry(zipInputStream) == null) {
+                    throw new IOException("В zip-архиве нет файлов.");
+                }
+                return zipInputStream;
+            }
+            return decompress(raw, compression);
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(raw, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Размер источника в байтах, если он известен без чтения. Для сжатых источников это размер сжатых данных.
+     * @return размер или -1, если источник - поток или размер файла не удалось узнать.
+     */
+    long sizeHint() {
+        if (byteBuffer != null) {
+            return byteBuffer.remaining();
+        }
+        if (path != null) {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Открывает источник для парсера. Для файлов указывается systemId: он попадает в ошибки разбора
+     * {@link org.xml.sax.SAXParseException}, а обычные парсеры из {@link XmlFactories} разрешают от каталога
+     * файла относительные ссылки на DTD и внешние сущности. Безопасные парсеры DOCTYPE не принимают.
+     * @return источник для {@link javax.xml.parsers.DocumentBuilder#parse(InputSource)}.
+     * @throws IOException
+     */
+    InputSource openInputSource() throws IOException {
+        InputSource inputSource = new InputSource(openStream());
+        if (path != null) {
+            inputSource.setSystemId(path.toUri().toString());
+        }
+        return inputSource;
+    }
+
+    /**
+     * Обработчик одного xml-документа из архива.
+     */
+    public interface EntryHandler {
+        /**
+         * @param name имя файла в архиве или null, если источник не zip-архив.
+         * @param inputStream поток с документом. Закрывать его не нужно.
+         */
+        void handle(String name, InputStream inputStream) throws Exception;
+    }
+
+    /**
+     * Передает обработчику по очереди каждый файл zip-архива, не распаковывая архив целиком. Если источник
+     * не zip-архив, обработчик вызывается один раз для всего документа.
+     * @param handler обработчик документов.
+     * @throws Exception ошибка чтения или ошибка обработчика.
+     */
+    public void forEachEntry(EntryHandler handler) throws Exception {
+        InputStream raw = openRaw();
+        Compression compression;
+        InputStream decompressed;
+        try {
+            compression = detectCompression(raw);
+            decompressed = compression == Compression.ZIP ? raw : decompress(raw, compression);
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(raw, e);
+            throw e;
+        }
+        if (compression != Compression.ZIP) {
+            try (InputStream inputStream = decompressed) {
+                handler.handle(null, new NonClosingInputStream(inputStream));
+            }
+            return;
+        }
+        try (ZipInputStream zipInputStream = new ZipInputStream(raw)) {
+            InputStream entryStream = new NonClosingInputStream(zipInputStream);
+            for (ZipEntry entry = nextFileEntry(zipInputStream); entry != null;
+                 entry = nextFileEntry(zipInputStream)) {
+                handler.handle(entry.getName(), entryStream);
+            }
+        }
+    }
+
+    private InputStream openRaw() throws IOException {
+        if (byteBuffer != null) {
+            return new ByteBufferInputStream(byteBuffer.duplicate());
+        }
+        if (inputStream != null) {
+            return inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream, BUFFER_SIZE);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() < MAP_THRESHOLD) {
+                return new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            }
+            return new MappedFileInputStream(channel);
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(channel, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Закрывает источник после ошибки открытия; ошибка закрытия добавляется к исходной как подавленная.
+     */
+    private static void closeAfterFailure(Closeable closeable, Throwable failure) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private enum Compression {
+        NONE, GZIP, ZIP
+    }
+
+    /**
+     * Определяет сжатие по первым байтам. Поток должен поддерживать mark.
+     */
+    private static Compression detectCompression(InputStream inputStream) throws IOException {
+        byte[] magic = new byte[4];
+        inputStream.mark(magic.length);
+        int length = 0;
+        int read;
+        while (length < magic.length && (read = inputStream.read(magic, length, magic.length - length)) > 0) {
+            length += read;
+        }
+        inputStream.reset();
+        if (length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return Compression.GZIP;
+        }
+        if (length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            return Compression.ZIP;
+        }
+        return Compression.NONE;
+    }
+
+    private static InputStream decompress(InputStream raw, Compression compression) throws IOException {
+        return compression == Compression.GZIP ? new GZIPInputStream(raw, BUFFER_SIZE) : raw;
+    }
+
+    private static ZipEntry nextFileEntry(ZipInputStream zipInputStream) throws IOException {
+        ZipEntry entry = zipInputStream.getNextEntry();
+        while (entry != null && entry.isDirectory()) {
+            entry = zipInputStream.getNextEntry();
+        }
+        return entry;
+    }
+
+    /**
+     * Поток поверх {@link ByteBuffer}, без копирования в промежуточный буфер.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Поток поверх файла, отображенного в память частями по {@link #MAP_CHUNK_SIZE} байт.
+     * Следующая часть отображается, когда прочитана предыдущая.
+     */
+    private static class MappedFileInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer chunk;
+        private long chunkStart;
+        private long markPosition;
+
+        private MappedFileInputStream(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            mapChunk(0);
+        }
+
+        private void mapChunk(long start) throws IOException {
+            chunkStart = start;
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_CHUNK_SIZE, size - start));
+        }
+
+        private boolean ensureRemaining() throws IOException {
+            if (chunk.hasRemaining()) {
+                return true;
+            }
+            long next = chunkStart + chunk.limit();
+            if (next >= size) {
+                return false;
+            }
+            mapChunk(next);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureRemaining() ? chunk.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.remaining());
+            chunk.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - chunkStart - chunk.position());
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            markPosition = chunkStart + chunk.position();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (markPosition < chunkStart) {
+                mapChunk(markPosition);
+            }
+            chunk.position((int) (markPosition - chunkStart));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Не дает обработчику закрыть поток архива между файлами: поток закрывается после последнего файла.
+     */
+    private static class NonClosingInputStream extends FilterInputStream {
+        private NonClosingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public void close() {
+            //empty
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.company;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Разбивает большой xml-документ на записи, например теги item внутри subdocuments, и обрабатывает каждую
+ * запись набором правил как отдельный маленький документ. Документ читается через StAX, и в памяти всегда
+ * находится DOM только одной записи; запись передается обработчику сразу после того, как прочитана.
+ * <p>
+ * Записью считается самый внешний тег recordTagName, вложенные одноименные теги остаются внутри записи.
+ * Все, что лежит вне записей, пропускается. Объявления пространств имен из тегов-предков переносятся
+ * в корневой тег записи, чтобы запись оставалась корректным документом.
+ */
+public class XmlRecordSplitter {
+
+    private final RuleSet ruleSet;
+    private final String recordTagName;
+    private OutputOptions outputOptions = new OutputOptions();
+
+    /**
+     * Обработчик одной записи.
+     */
+    public interface RecordHandler {
+        /**
+         * @param index номер записи, начиная с 1.
+         * @param record запись, к которой уже применены правила; результат валидации в ее логе.
+         */
+        void handle(int index, XmlFile record) throws Exception;
+    }
+
+    /**
+     * Конструктор.
+     * @param ruleSet набор правил, применяемый к каждой записи.
+     * @param recordTagName имя тега записи.
+     */
+    public XmlRecordSplitter(RuleSet ruleSet, String recordTagName) {
+        this.ruleSet = ruleSet;
+        this.recordTagName = recordTagName;
+    }
+
+    /**
+     * Параметры записи файлов в {@link #split(XmlInput, File)}.
+     * @return этот объект.
+     */
+    public XmlRecordSplitter setOutputOptions(OutputOptions outputOptions) {
+        this.outputOptions = outputOptions;
+        return this;
+    }
+
+    /**
+     * Разбивает документ и записывает каждую запись в отдельный файл вида {@code item-1.xml}.
+     * @param source источник xml-документа.
+     * @param outputDirectory каталог для файлов записей.
+     * @return количество записей.
+     * @throws Exception ошибка чтения или записи.
+     */
+    public int split(XmlInput source, final File outputDirectory) throws Exception {
+        return split(source, new RecordHandler() {
+            @Override
+            public void handle(int index, XmlFile record) throws Exception {
+                File recordFile = new File(outputDirectory, recordTagName + "-" + index + ".xml");
+                record.write(recordFile.toPath(), outputOptions);
+            }
+        });
+    }
+
+    /**
+     * Разбивает документ и передает каждую запись обработчику в порядке документа.
+     * @param source источник xml-документа.
+     * @param handler обработчик записей.
+     * @return количество записей.
+     * @throws Exception ошибка чтения или ошибка обработчика.
+     */
+    public int split(XmlInput source, RecordHandler handler) throws Exception {
+        try (InputStream inputStream = source.openStream()) {
+            XMLStreamReader reader = XmlFactories.xmlInputFactory().createXMLStreamReader(inputStream);
+            try {
+                return split(reader, handler);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private int split(XMLStreamReader reader, RecordHandler handler) throws Exception {
+        //объявления пространств имен тегов-предков текущей записи
+        List<Map<String, String>> namespaceScopes = new ArrayList<>();
+        int records = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (qualifiedName(reader.getPrefix(), reader.getLocalName()).equals(recordTagName)) {
+                    XmlFile record = new XmlFile(readRecord(reader, namespaceScopes));
+                    ruleSet.applyTo(record);
+                    handler.handle(++records, record);
+                } else {
+                    Map<String, String> scope = new LinkedHashMap<>();
+                    for (int index = 0; index < reader.getNamespaceCount(); index++) {
+                        scope.put(namespaceAttribute(reader.getNamespacePrefix(index)), namespaceUri(reader, index));
+                    }
+                    namespaceScopes.add(scope);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                namespaceScopes.remove(namespaceScopes.size() - 1);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Строит DOM записи, начиная с ее открывающего тега, и оставляет reader на закрывающем теге записи.
+     */
+    private static Document readRecord(XMLStreamReader reader, List<Map<String, String>> namespaceScopes)
+            throws XMLStreamException, ParserConfigurationException {
+        Document document = XmlFactories.documentBuilder().newDocument();
+        Element root = createElement(document, reader);
+        //ближайшее к записи объявление перекрывает внешние
+        for (int level = namespaceScopes.size() - 1; level >= 0; level--) {
+            for (Map.Entry<String, String> declaration : namespaceScopes.get(level).entrySet()) {
+                if (!root.hasAttribute(declaration.getKey())) {
+                    root.setAttribute(declaration.getKey(), declaration.getValue());
+                }
+            }
+        }
+        document.appendChild(root);
+        Node current = root;
+        while (current != document) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    current = current.appendChild(createElement(document, reader));
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    current = current.getParentNode();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    current.appendChild(document.createTextNode(reader.getText()));
+                    break;
+                case XMLStreamConstants.CDATA:
+                    current.appendChild(document.createCDATASection(reader.getText()));
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    current.appendChild(document.createComment(reader.getText()));
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    current.appendChild(document.createProcessingInstruction(reader.getPITarget(),
+                            reader.getPIData()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Создает тег с атрибутами и объявлениями пространств имен. Как и парсер {@link XmlFile}, документ
+     * строится без учета пространств имен: теги и атрибуты создаются по полным именам.
+     */
+    private static Element createElement(Document document, XMLStreamReader reader) {
+        Element element = document.createElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+        for (int index = 0; index < reader.getNamespaceCount(); index++) {
+            element.setAttribute(namespaceAttribute(reader.getNamespacePrefix(index)), namespaceUri(reader, index));
+        }
+        for (int index = 0; index < reader.getAttributeCount(); index++) {
+            element.setAttribute(qualifiedName(reader.getAttributePrefix(index), reader.getAttributeLocalName(index)),
+                    reader.getAttributeValue(index));
+        }
+        return element;
+    }
+
+    private static String namespaceUri(XMLStreamReader reader, int index) {
+        String uri = reader.getNamespaceURI(index);
+        return uri == null ? "" : uri;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String namespaceAttribute(String prefix) {
+        return prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+    }
+}
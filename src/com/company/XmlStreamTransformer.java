@@ -0,0 +1,555 @@
+package com.company;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Потоковая трансформация и валидация xml-документа. В отличие от {@link XmlFile} не загружает документ в память
+ * целиком: события читаются через {@link XMLEventReader} и сразу пишутся в {@link XMLEventWriter}, поэтому
+ * расход памяти зависит от глубины вложенности тегов, а не от размера файла.
+ * <p>
+ * Правила применяются к тегам исходного документа в порядке добавления, с учетом переименований предыдущими
+ * правилами. Теги внутри тега, содержимое которого заменено правилом addNewTextNode, правилами после него
+ * не обрабатываются, как и в {@link XmlFile}. Правило changeRootTag требует знания структуры всего документа
+ * и в потоковом режиме не поддерживается, как и проверка тегов, созданных правилами addNewNode и addNewTextNode.
+ * <p>
+ * Если эталонный тег правила crossValidation стоит в документе после проверяемых тегов, их текст хранится
+ * до встречи с эталоном, но не больше, чем ошибок еще может попасть в лог: остальные теги до эталона не проверяются.
+ */
+public class XmlStreamTransformer {
+
+    /**
+     * Лист хранящий правила трансформации и валидации.
+     */
+    private List<RuleDefinition> rulesList;
+
+    /**
+     * Лог, в который пишутся сообщения во время валидации последнего обработанного документа.
+     */
+    private XmlValidationLog validationLog;
+    private int maxValidationErrors = XmlValidationLog.DEFAULT_MAX_ERRORS;
+
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory;
+    private final XMLEventFactory eventFactory;
+
+    /**
+     * Конструктор.
+     */
+    public XmlStreamTransformer() {
+        rulesList = new ArrayList<>();
+        validationLog = new XmlValidationLog();
+        inputFactory = XmlFactories.xmlInputFactory();
+        outputFactory = XmlFactories.xmlOutputFactory();
+        eventFactory = XmlFactories.xmlEventFactory();
+    }
+
+    /**
+     * Конструктор, добавляющий все правила из набора.
+     * @param ruleSet набор правил.
+     * @throws UnsupportedOperationException если в наборе есть правило changeRootTag или правило валидации
+     * проверяет тег, созданный правилом.
+     */
+    public XmlStreamTransformer(RuleSet ruleSet) {
+        this();
+        XmlStreamValidator.checkSupported(ruleSet.getDefinitions());
+        for (RuleDefinition definition : ruleSet.getDefinitions()) {
+            if (definition.getKind() == RuleDefinition.Kind.CHANGE_ROOT_TAG) {
+                changeRootTag(definition.getTargetNodeName(), definition.getArgument());
+            }
+            rulesList.add(definition);
+        }
+    }
+
+    /**
+     * Возвращает лог валидации последнего обработанного документа.
+     * @return все сообщений из лога в виде одной строки.
+     */
+    public String getValidationLog() {
+        return validationLog.getValidationLog();
+    }
+
+    /**
+     * Были ли ошибки при валидации последнего обработанного документа?
+     * @return веренет true, если ошибок не было, и false иначе.
+     */
+    public boolean isValid() {
+        return validationLog.isValid();
+    }
+
+    /**
+     * Возвращает ошибки валидации последнего обработанного документа в порядке их обнаружения.
+     * @return неизменяемый список ошибок.
+     */
+    public List<ValidationResult> getValidationResults() {
+        return validationLog.getResults();
+    }
+
+    /**
+     * Задает количество ошибок, после которого правила валидации перестают проверять документ.
+     * @param maxErrors максимальное количество ошибок.
+     * @return этот трансформатор.
+     */
+    public XmlStreamTransformer setMaxValidationErrors(int maxErrors) {
+        validationLog.setMaxErrors(maxErrors);
+        this.maxValidationErrors = maxErrors;
+        return this;
+    }
+
+    /**
+     * Трансформирует файл source и записывает результат в файл result.
+     * @param source исходный xml-файл.
+     * @param result файл для записи результата.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void transform(File source, File result) throws IOException, XMLStreamException {
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(result))) {
+            transform(XmlInput.of(source), outputStream);
+        }
+    }
+
+    /**
+     * Трансформирует xml-документ из источника и записывает результат в поток result. Большие файлы
+     * отображаются в память, сжатые источники распаковываются на лету. Поток result не закрывается.
+     * @param source источник xml-документа.
+     * @param result поток для записи результата.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void transform(XmlInput source, OutputStream result) throws IOException, XMLStreamException {
+        try (InputStream inputStream = source.openStream()) {
+            transform(inputStream, result);
+        }
+    }
+
+    /**
+     * Трансформирует xml-документ из потока source и записывает результат в поток result.
+     * Потоки не закрываются.
+     * @param source поток с исходным xml-документом.
+     * @param result поток для записи результата.
+     * @throws XMLStreamException
+     * @throws UnsupportedOperationException если правило валидации проверяет тег, созданный правилом.
+     */
+    public void transform(InputStream source, OutputStream result) throws XMLStreamException {
+        XmlStreamValidator.checkSupported(rulesList);
+        validationLog = new XmlValidationLog();
+        validationLog.setMaxErrors(maxValidationErrors);
+        XMLEventReader reader = inputFactory.createXMLEventReader(source);
+        try {
+            String encoding = "UTF-8";
+            if (reader.hasNext() && reader.peek().isStartDocument()) {
+                StartDocument startDocument = (StartDocument) reader.peek();
+                if (startDocument.encodingSet()) {
+                    encoding = startDocument.getCharacterEncodingScheme();
+                }
+            }
+            XMLEventWriter writer = outputFactory.createXMLEventWriter(result, encoding);
+            try {
+                new StreamRun(writer).run(reader);
+                writer.flush();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+        /*                                                                         */
+        /* Методы позволяющие получить правила трансформации и валидации XML-файла */
+        /*                                                                         */
+
+    /**
+     * Меняет название тега.
+     * @param targetNodeName название тега к которому надо применить правило.
+     * @param nodeNewName название нового тега.
+     * @return этот трансформатор.
+     */
+    public XmlStreamTransformer changeNodeName(String targetNodeName, String nodeNewName) {
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.CHANGE_NODE_NAME, targetNodeName, nodeNewName));
+        return this;
+    }
+
+    /**
+     * Добавляет пустой тег с именем newNodeName в конец ноды с именем targetNodeName.
+     * @param targetNodeName название тега к которому надо применить правило.
+     * @param newNodeName название нового тега.
+     * @return этот трансформатор.
+     */
+    public XmlStreamTransformer addNewNode(String targetNodeName, String newNodeName) {
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.ADD_NEW_NODE, targetNodeName, newNodeName));
+        return this;
+    }
+
+    /**
+     * Перенос тегов в другой родительский тег требует всего документа, поэтому в потоковом режиме не поддерживается.
+     * @param targetNodeName название тега к которому надо применить правило.
+     * @param newParentNodeName название нового тега.
+     * @return никогда не возвращает значение.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public XmlStreamTransformer changeRootTag(String targetNodeName, String newParentNodeName) {
+        throw new UnsupportedOperationException(String.format(
+                "Правило changeRootTag(%s, %s) не поддерживается в потоковом режиме, используйте XmlFile.",
+                targetNodeName, newParentNodeName));
+    }
+
+    /**
+     * Добавляет вокруг текста ноды с именем targetTextNodeName новый тег с именем newNodeTextName.
+     * @param targetTextNodeName название тега к которому надо применить правило.
+     * @param newNodeTextName название нового тега.
+     * @return этот трансформатор.
+     */
+    public XmlStreamTransformer addNewTextNode(String targetTextNodeName, String newNodeTextName) {
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.ADD_NEW_TEXT_NODE, targetTextNodeName, newNodeTextName));
+        return this;
+    }
+
+    /**
+     * Валидирует по заданному паттерну, и в случае провала выдает ошибку о неверном типе данных.
+     * @param targetTextNodeName название тега к которому надо применить правило.
+     * @param pattern паттерн, которому должен соответствовать текст тега.
+     * @return этот трансформатор.
+     */
+    public XmlStreamTransformer typeValidation(String targetTextNodeName, String pattern) {
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.TYPE_VALIDATION, targetTextNodeName, pattern));
+        return this;
+    }
+
+    /**
+     * Ищет вхождение текста из первого тега fromTextNodeName в тексте нод с именем targetTextNodeName.
+     * Если тег fromTextNodeName встречается в документе позже проверяемых нод, то их текст запоминается
+     * и проверка откладывается до момента, когда значение для сверки станет известно.
+     * @param targetTextNodeName название тега к которому надо применить правило.
+     * @param fromTextNodeName название тега, с текстом которого идет сверка.
+     * @return этот трансформатор.
+     */
+    public XmlStreamTransformer crossValidation(String targetTextNodeName, String fromTextNodeName) {
+        rulesList.add(new RuleDefinition(RuleDefinition.Kind.CROSS_VALIDATION, targetTextNodeName, fromTextNodeName));
+        return this;
+    }
+
+        /*                                                                         */
+        /*                 Состояние одного прохода по документу.                  */
+        /*                                                                         */
+
+    /**
+     * Открытый тег документа.
+     */
+    private static class Frame {
+        /**
+         * Имя тега в выходном документе.
+         */
+        private String name;
+        /**
+         * Текст ноды, если он нужен правилам.
+         */
+        private StringBuilder text;
+        /**
+         * Правила, которые выполняются при закрытии тега, и имена тега на момент их применения.
+         */
+        private List<Integer> endRules;
+        private List<String> endRuleNodeNames;
+        /**
+         * Правила сверки, для которых текст этого тега является эталонным значением.
+         */
+        private List<CrossReference> references;
+        /**
+         * Тег был записан в выходной документ.
+         */
+        private boolean written;
+        /**
+         * Дочерние ноды не пишутся в выходной документ, тк тег будет заменен текстом.
+         */
+        private boolean suppressChildren;
+        /**
+         * Наименьший номер правила addNewTextNode, заменившего содержимое этого тега или его предка:
+         * вложенные теги правила с большими номерами уже не видят.
+         */
+        private int wrapRule;
+
+        private void addEndRule(int ruleIndex, String nodeName) {
+            if (endRules == null) {
+                endRules = new ArrayList<>(2);
+                endRuleNodeNames = new ArrayList<>(2);
+            }
+            endRules.add(ruleIndex);
+            endRuleNodeNames.add(nodeName);
+        }
+    }
+
+    /**
+     * Эталонное значение для правила сверки и значения, ожидающие проверки.
+     */
+    private class CrossReference {
+        private final RuleDefinition rule;
+        private boolean found;
+        private String value;
+        private List<ValidationResult> pendingResults = new ArrayList<>();
+
+        private CrossReference(RuleDefinition rule) {
+            this.rule = rule;
+        }
+
+        private void resolve(String referenceValue) {
+            value = referenceValue;
+            for (ValidationResult pendingResult : pendingResults) {
+                if (!pendingResult.getValue().contains(value)) {
+                    validationLog.addResult(pendingResult);
+                }
+            }
+            pendingResults = null;
+        }
+
+        private void check(String nodeName, String text, String location) {
+            if (value == null) {
+                //ошибок из отложенных значений в лог попадет не больше, чем в нем осталось места
+                if (pendingResults.size() < validationLog.getMaxErrors() - validationLog.getErrorCount()) {
+                    pendingResults.add(createResult(nodeName, text, location));
+                }
+            } else if (!text.contains(value)) {
+                validationLog.addResult(createResult(nodeName, text, location));
+            }
+        }
+
+        private ValidationResult createResult(String nodeName, String text, String location) {
+            return new ValidationResult(XmlFile.ValidationError.CROSS_VALIDATION_ERROR,
+                    nodeName, rule.getArgument(), location, text);
+        }
+
+        private void finish() {
+            if (pendingResults != null) {
+                for (ValidationResult pendingResult : pendingResults) {
+                    validationLog.addResult(pendingResult);
+                }
+            }
+        }
+    }
+
+    /**
+     * Один проход по документу.
+     */
+    private class StreamRun {
+        private final XMLEventWriter writer;
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private final ElementPath path = new ElementPath();
+        private final Pattern[] patterns;
+        private final CrossReference[] crossReferences;
+        private int suppressDepth;
+        private int collectingFrames;
+
+        private StreamRun(XMLEventWriter writer) {
+            this.writer = writer;
+            patterns = new Pattern[rulesList.size()];
+            crossReferences = new CrossReference[rulesList.size()];
+            for (int index = 0; index < rulesList.size(); index++) {
+                RuleDefinition rule = rulesList.get(index);
+                if (rule.getKind() == RuleDefinition.Kind.TYPE_VALIDATION) {
+                    patterns[index] = PatternCache.get(rule.getArgument());
+                } else if (rule.getKind() == RuleDefinition.Kind.CROSS_VALIDATION) {
+                    crossReferences[index] = new CrossReference(rule);
+                }
+            }
+        }
+
+        private void run(XMLEventReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                switch (event.getEventType()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(event.asStartElement());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        characters(event);
+                        break;
+                    case XMLStreamConstants.END_DOCUMENT:
+                        for (CrossReference crossReference : crossReferences) {
+                            if (crossReference != null) {
+                                crossReference.finish();
+                            }
+                        }
+                        writer.add(event);
+                        break;
+                    default:
+                        if (suppressDepth == 0) {
+                            writer.add(event);
+                        }
+                }
+            }
+        }
+
+        private void startElement(StartElement element) throws XMLStreamException {
+            Frame frame = new Frame();
+            QName qName = element.getName();
+            String sourceName = qName.getPrefix().isEmpty()
+                    ? qName.getLocalPart() : qName.getPrefix() + ":" + qName.getLocalPart();
+            String name = sourceName;
+            boolean collect = false;
+            Frame parent = stack.peek();
+            frame.wrapRule = parent != null ? parent.wrapRule : Integer.MAX_VALUE;
+            int wrapAbove = frame.wrapRule;
+            for (int index = 0; index < rulesList.size(); index++) {
+                if (index > wrapAbove) {
+                    //тег удален правилом addNewTextNode предка раньше, чем дошла очередь до следующих правил
+                    break;
+                }
+                RuleDefinition rule = rulesList.get(index);
+                CrossReference crossReference = crossReferences[index];
+                if (crossReference != null && !crossReference.found && rule.getArgument().equals(name)) {
+                    crossReference.found = true;
+                    if (frame.references == null) {
+                        frame.references = new ArrayList<>(1);
+                    }
+                    frame.references.add(crossReference);
+                    collect = true;
+                }
+                if (!rule.getTargetNodeName().equals(name)) {
+                    continue;
+                }
+                switch (rule.getKind()) {
+                    case CHANGE_NODE_NAME:
+                        name = rule.getArgument();
+                        break;
+                    case ADD_NEW_TEXT_NODE:
+                        frame.suppressChildren = true;
+                        frame.wrapRule = Math.min(frame.wrapRule, index);
+                        collect = true;
+                        frame.addEndRule(index, name);
+                        break;
+                    case TYPE_VALIDATION:
+                    case CROSS_VALIDATION:
+                        collect = true;
+                        frame.addEndRule(index, name);
+                        break;
+                    default:
+                        frame.addEndRule(index, name);
+                }
+            }
+            frame.name = name;
+            path.push(sourceName);
+            if (collect) {
+                frame.text = new StringBuilder();
+                collectingFrames++;
+            }
+            if (suppressDepth == 0) {
+                frame.written = true;
+                if (name.equals(sourceName)) {
+                    writer.add(element);
+                } else {
+                    writer.add(eventFactory.createStartElement("", "", name,
+                            element.getAttributes(), element.getNamespaces()));
+                }
+            }
+            if (frame.suppressChildren) {
+                suppressDepth++;
+            }
+            stack.push(frame);
+        }
+
+        private void characters(XMLEvent event) throws XMLStreamException {
+            if (collectingFrames > 0) {
+                String data = event.asCharacters().getData();
+                for (Frame frame : stack) {
+                    if (frame.text != null) {
+                        frame.text.append(data);
+                    }
+                }
+            }
+            if (suppressDepth == 0) {
+                writer.add(event);
+            }
+        }
+
+        private void endElement() throws XMLStreamException {
+            Frame frame = stack.pop();
+            if (frame.suppressChildren) {
+                suppressDepth--;
+            }
+            String text = null;
+            if (frame.text != null) {
+                text = frame.text.toString();
+                frame.text = null;
+                collectingFrames--;
+            }
+            if (frame.references != null) {
+                for (CrossReference crossReference : frame.references) {
+                    crossReference.resolve(text);
+                }
+            }
+            List<String[]> appendedNodes = null;
+            if (frame.endRules != null) {
+                for (int index = 0; index < frame.endRules.size(); index++) {
+                    int ruleIndex = frame.endRules.get(index);
+                    RuleDefinition rule = rulesList.get(ruleIndex);
+                    String nodeName = frame.endRuleNodeNames.get(index);
+                    switch (rule.getKind()) {
+                        case ADD_NEW_NODE:
+                            if (appendedNodes == null) {
+                                appendedNodes = new ArrayList<>(1);
+                            }
+                            appendedNodes.add(new String[] {rule.getArgument(), null});
+                            break;
+                        case ADD_NEW_TEXT_NODE:
+                            //текст ноды заменяет все ее содержимое, включая ранее добавленные теги
+                            appendedNodes = new ArrayList<>(1);
+                            appendedNodes.add(new String[] {rule.getArgument(), text});
+                            break;
+                        case TYPE_VALIDATION:
+                            if (!validationLog.isLimitReached() && !patterns[ruleIndex].matcher(text).matches()) {
+                                validationLog.addResult(new ValidationResult(XmlFile.ValidationError.TYPE_ERROR,
+                                        nodeName, null, path.location(rulesList, ruleIndex), text));
+                            }
+                            break;
+                        case CROSS_VALIDATION:
+                            if (!validationLog.isLimitReached()) {
+                                crossReferences[ruleIndex].check(nodeName, text, path.location(rulesList, ruleIndex));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            path.pop();
+            if (!frame.written) {
+                return;
+            }
+            if (appendedNodes != null) {
+                for (String[] appendedNode : appendedNodes) {
+                    writer.add(eventFactory.createStartElement("", "", appendedNode[0]));
+                    if (appendedNode[1] != null && !appendedNode[1].isEmpty()) {
+                        writer.add(eventFactory.createCharacters(appendedNode[1]));
+                    }
+                    writer.add(eventFactory.createEndElement("", "", appendedNode[0]));
+                }
+            }
+            writer.add(eventFactory.createEndElement("", "", frame.name));
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.company;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Только валидация xml-документа, без трансформации и без построения DOM. Документ читается курсором
+ * {@link XMLStreamReader}, текст собирается только для тегов, которые проверяют правила typeValidation
+ * и crossValidation, а эталонные значения для сверки хранятся в маленькой таблице.
+ * <p>
+ * Правила переименования из набора учитываются: если правило валидации стоит после переименования тега,
+ * оно проверяет теги с исходным именем. Правило addNewTextNode учитывается так же, как в {@link XmlFile}:
+ * теги внутри обернутого тега после него не проверяются. Правила addNewNode и addNewTextNode текст
+ * существующих тегов не меняют. Наборы, в которых валидация зависит от того, что валидатор не видит, -
+ * проверка созданных правилами тегов или проверка после переноса тегов правилом changeRootTag, -
+ * не поддерживаются, для них нужен {@link XmlFile}.
+ * <p>
+ * Ошибки возвращаются в том же порядке, что и в {@link XmlFile}: по правилам, а внутри правила в порядке
+ * документа, поэтому при ограничении количества ошибок в результат попадают те же ошибки.
+ * <p>
+ * Валидатор не хранит состояние между документами, поэтому один экземпляр можно использовать из разных потоков.
+ */
+public class XmlStreamValidator {
+
+    private final List<RuleDefinition> rulesList;
+    private final Pattern[] patterns;
+    /**
+     * Порядковый номер правила сверки среди всех правил сверки, для остальных правил -1.
+     */
+    private final int[] crossIndexes;
+    private final int crossRuleCount;
+    /**
+     * Номер первого правила валидации или -1, если их нет.
+     */
+    private final int firstCheckRule;
+    private final int maxValidationErrors;
+
+    /**
+     * Что нужно сделать с тегом с данным исходным именем. Вычисляется при создании валидатора для всех имен
+     * из правил, теги с остальными именами правилами не обрабатываются.
+     */
+    private final Map<String, TagPlan> tagPlans;
+    private final TagPlan noRulesPlan;
+
+    /**
+     * Конструктор валидатора без ограничения количества ошибок.
+     * @param ruleSet набор правил, из которого берутся правила валидации, переименования и addNewTextNode.
+     * @throws UnsupportedOperationException если результат валидации зависит от тегов, созданных правилами,
+     * или от переноса тегов правилом changeRootTag.
+     */
+    public XmlStreamValidator(RuleSet ruleSet) {
+        this(ruleSet, XmlValidationLog.DEFAULT_MAX_ERRORS);
+    }
+
+    /**
+     * Конструктор.
+     * @param ruleSet набор правил, из которого берутся правила валидации, переименования и addNewTextNode.
+     * @param maxValidationErrors количество ошибок, после которого проверка документа прекращается.
+     * @throws UnsupportedOperationException если результат валидации зависит от тегов, созданных правилами,
+     * или от переноса тегов правилом changeRootTag.
+     */
+    public XmlStreamValidator(RuleSet ruleSet, int maxValidationErrors) {
+        if (maxValidationErrors < 1) {
+            throw new IllegalArgumentException("Количество ошибок должно быть больше нуля.");
+        }
+        this.maxValidationErrors = maxValidationErrors;
+        checkSupported(ruleSet.getDefinitions());
+        rulesList = new ArrayList<>();
+        for (RuleDefinition definition : ruleSet.getDefinitions()) {
+            switch (definition.getKind()) {
+                case CHANGE_NODE_NAME:
+                case ADD_NEW_TEXT_NODE:
+                case TYPE_VALIDATION:
+                case CROSS_VALIDATION:
+                    rulesList.add(definition);
+                    break;
+                default:
+                    break;
+            }
+        }
+        patterns = new Pattern[rulesList.size()];
+        crossIndexes = new int[rulesList.size()];
+        int crossRules = 0;
+        int firstCheck = -1;
+        for (int index = 0; index < rulesList.size(); index++) {
+            RuleDefinition rule = rulesList.get(index);
+            crossIndexes[index] = -1;
+            if (firstCheck < 0 && isValidation(rule)) {
+                firstCheck = index;
+            }
+            if (rule.getKind() == RuleDefinition.Kind.TYPE_VALIDATION) {
+                patterns[index] = PatternCache.get(rule.getArgument());
+            } else if (rule.getKind() == RuleDefinition.Kind.CROSS_VALIDATION) {
+                crossIndexes[index] = crossRules++;
+            }
+        }
+        crossRuleCount = crossRules;
+        firstCheckRule = firstCheck;
+        tagPlans = new HashMap<>();
+        for (RuleDefinition rule : rulesList) {
+            addTagPlan(rule.getTargetNodeName());
+            if (rule.getKind() == RuleDefinition.Kind.CROSS_VALIDATION) {
+                addTagPlan(rule.getArgument());
+            }
+        }
+        noRulesPlan = new TagPlan(null);
+    }
+
+    private void addTagPlan(String sourceName) {
+        if (!tagPlans.containsKey(sourceName)) {
+            tagPlans.put(sourceName, new TagPlan(sourceName));
+        }
+    }
+
+    /**
+     * Проверяет, что правила трансформации не влияют на правила валидации, стоящие после них, так,
+     * как валидатор не может учесть без построения документа.
+     * @throws UnsupportedOperationException если результат валидации зависит от тегов, созданных правилами,
+     * или от переноса тегов правилом changeRootTag.
+     */
+    static void checkSupported(List<RuleDefinition> definitions) {
+        for (int index = 0; index < definitions.size(); index++) {
+            RuleDefinition rule = definitions.get(index);
+            switch (rule.getKind()) {
+                case CHANGE_ROOT_TAG:
+                    for (int next = index + 1; next < definitions.size(); next++) {
+                        if (isValidation(definitions.get(next))) {
+                            throw new UnsupportedOperationException(String.format("Правило %s после правила %s"
+                                    + " не поддерживается валидатором, используйте XmlFile.", definitions.get(next), rule));
+                        }
+                    }
+                    break;
+                case ADD_NEW_NODE:
+                case ADD_NEW_TEXT_NODE:
+                    //созданный тег проверяется под своим именем с учетом следующих переименований
+                    String name = rule.getArgument();
+                    for (int next = index + 1; next < definitions.size(); next++) {
+                        RuleDefinition nextRule = definitions.get(next);
+                        if (isValidation(nextRule) && (nextRule.getTargetNodeName().equals(name)
+                                || nextRule.getKind() == RuleDefinition.Kind.CROSS_VALIDATION
+                                && nextRule.getArgument().equals(name))) {
+                            throw new UnsupportedOperationException(String.format("Правило %s проверяет тег,"
+                                    + " созданный правилом %s, используйте XmlFile.", nextRule, rule));
+                        }
+                        if (nextRule.getKind() == RuleDefinition.Kind.CHANGE_NODE_NAME
+                                && nextRule.getTargetNodeName().equals(name)) {
+                            name = nextRule.getArgument();
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static boolean isValidation(RuleDefinition rule) {
+        return rule.getKind() == RuleDefinition.Kind.TYPE_VALIDATION
+                || rule.getKind() == RuleDefinition.Kind.CROSS_VALIDATION;
+    }
+
+    /**
+     * Проверяет документ. Поток не закрывается.
+     * @param source поток с xml-документом.
+     * @return ошибки валидации по правилам, а внутри правила в порядке документа; пустой список,
+     * если документ валиден.
+     * @throws XMLStreamException
+     */
+    public List<ValidationResult> validate(InputStream source) throws XMLStreamException {
+        return validate(source, XmlFactories.xmlInputFactory());
+    }
+
+    /**
+     * Проверяет документ, читая его парсером из заданной фабрики. Поток не закрывается.
+     * @param source поток с xml-документом.
+     * @param inputFactory фабрика парсеров, например {@link XmlFactories#secureXmlInputFactory()}.
+     * @return ошибки валидации по правилам, а внутри правила в порядке документа; пустой список,
+     * если документ валиден.
+     * @throws XMLStreamException
+     */
+    List<ValidationResult> validate(InputStream source, XMLInputFactory inputFactory) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(source);
+        try {
+            return new ValidationRun().run(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Проверяет документ из источника. Большие файлы отображаются в память, сжатые источники
+     * распаковываются на лету.
+     * @param source источник xml-документа.
+     * @return ошибки валидации по правилам, а внутри правила в порядке документа; пустой список,
+     * если документ валиден.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public List<ValidationResult> validate(XmlInput source) throws IOException, XMLStreamException {
+        try (InputStream inputStream = source.openStream()) {
+            return validate(inputStream);
+        }
+    }
+
+    /**
+     * Проверяет документ.
+     * @param source поток с xml-документом.
+     * @return true, если ошибок нет.
+     * @throws XMLStreamException
+     */
+    public boolean isValid(InputStream source) throws XMLStreamException {
+        return validate(source).isEmpty();
+    }
+
+    private TagPlan tagPlan(String sourceName) {
+        TagPlan tagPlan = tagPlans.get(sourceName);
+        return tagPlan != null ? tagPlan : noRulesPlan;
+    }
+
+    /**
+     * Правила, которые применяются к тегу с данным исходным именем, с учетом переименований.
+     */
+    private class TagPlan {
+        private final int[] checkRules;
+        private final String[] checkNodeNames;
+        /**
+         * Номера правил сверки, для которых тег может быть эталонным.
+         */
+        private final int[] referenceRules;
+        /**
+         * Номер правила addNewTextNode, удаляющего вложенные теги, или {@link Integer#MAX_VALUE}.
+         */
+        private final int wrapRule;
+
+        /**
+         * @param sourceName имя тега в исходном документе или null для тегов, которых нет в правилах.
+         */
+        private TagPlan(String sourceName) {
+            int[] checks = new int[rulesList.size()];
+            String[] names = new String[rulesList.size()];
+            int[] references = new int[rulesList.size()];
+            int checkCount = 0;
+            int referenceCount = 0;
+            int wrap = Integer.MAX_VALUE;
+            String name = sourceName;
+            for (int index = 0; index < rulesList.size(); index++) {
+                RuleDefinition rule = rulesList.get(index);
+                if (crossIndexes[index] >= 0 && rule.getArgument().equals(name)) {
+                    references[referenceCount++] = index;
+                }
+                if (!rule.getTargetNodeName().equals(name)) {
+                    continue;
+                }
+                if (rule.getKind() == RuleDefinition.Kind.CHANGE_NODE_NAME) {
+                    name = rule.getArgument();
+                } else if (rule.getKind() == RuleDefinition.Kind.ADD_NEW_TEXT_NODE) {
+                    wrap = Math.min(wrap, index);
+                } else {
+                    checks[checkCount] = index;
+                    names[checkCount++] = name;
+                }
+            }
+            wrapRule = wrap;
+            checkRules = Arrays.copyOf(checks, checkCount);
+            checkNodeNames = Arrays.copyOf(names, checkCount);
+            referenceRules = Arrays.copyOf(references, referenceCount);
+        }
+
+        private boolean needsText() {
+            return checkRules.length > 0 || referenceRules.length > 0;
+        }
+    }
+
+    /**
+     * Одна проверка документа.
+     */
+    private class ValidationRun {
+        private final XmlValidationLog validationLog = new XmlValidationLog();
+        private final ElementPath path = new ElementPath();
+        private TagPlan[] plans = new TagPlan[16];
+        private StringBuilder[] texts = new StringBuilder[16];
+        /**
+         * Наименьший номер правила addNewTextNode, удаляющего тег вместе с предком: правила с большими номерами
+         * тег уже не видят.
+         */
+        private int[] wrapRules = new int[16];
+        private int depth;
+        private int collectingFrames;
+
+        /**
+         * Эталонные значения правил сверки: глубина первого эталонного тега (-1, пока он не встретился),
+         * его текст и ошибки, ожидающие этого текста.
+         */
+        private final int[] referenceDepths = new int[crossRuleCount];
+        private final String[] referenceValues = new String[crossRuleCount];
+        private final List<List<ValidationResult>> pendingResults = new ArrayList<>(crossRuleCount);
+
+        private ValidationRun() {
+            validationLog.setMaxErrors(maxValidationErrors);
+            validationLog.startDeferred(rulesList.size(), false);
+            Arrays.fill(referenceDepths, -1);
+            for (int index = 0; index < crossRuleCount; index++) {
+                pendingResults.add(new ArrayList<ValidationResult>());
+            }
+        }
+
+        private List<ValidationResult> run(XMLStreamReader reader) throws XMLStreamException {
+            //документ дочитывается, пока ошибки хотя бы одного правила еще могут попасть в лог
+            while (reader.hasNext() && !(firstCheckRule >= 0 && validationLog.isLimitReached(firstCheckRule))) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(reader);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (collectingFrames > 0) {
+                            for (int level = 0; level < depth; level++) {
+                                if (texts[level] != null) {
+                                    texts[level].append(reader.getTextCharacters(), reader.getTextStart(),
+                                            reader.getTextLength());
+                                }
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            //эталонный тег так и не встретился
+            for (int ruleIndex = 0; ruleIndex < rulesList.size(); ruleIndex++) {
+                if (crossIndexes[ruleIndex] >= 0) {
+                    validationLog.deferTo(ruleIndex);
+                    for (ValidationResult pendingResult : pendingResults.get(crossIndexes[ruleIndex])) {
+                        validationLog.addResult(pendingResult);
+                    }
+                }
+            }
+            validationLog.finishDeferred();
+            return validationLog.isValid() ? Collections.<ValidationResult>emptyList() : validationLog.getResults();
+        }
+
+        private void startElement(XMLStreamReader reader) {
+            if (depth == plans.length) {
+                plans = Arrays.copyOf(plans, depth * 2);
+                texts = Arrays.copyOf(texts, depth * 2);
+                wrapRules = Arrays.copyOf(wrapRules, depth * 2);
+            }
+            String prefix = reader.getPrefix();
+            String sourceName = prefix == null || prefix.isEmpty()
+                    ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+            TagPlan tagPlan = tagPlan(sourceName);
+            int wrapAbove = depth > 0 ? wrapRules[depth - 1] : Integer.MAX_VALUE;
+            wrapRules[depth] = Math.min(wrapAbove, tagPlan.wrapRule);
+            boolean collect = tagPlan.checkRules.length > 0;
+            for (int ruleIndex : tagPlan.referenceRules) {
+                int crossIndex = crossIndexes[ruleIndex];
+                if (referenceDepths[crossIndex] < 0 && wrapAbove > ruleIndex) {
+                    referenceDepths[crossIndex] = depth;
+                    collect = true;
+                }
+            }
+            path.push(sourceName);
+            plans[depth] = tagPlan.needsText() ? tagPlan : null;
+            texts[depth] = collect ? new StringBuilder() : null;
+            if (collect) {
+                collectingFrames++;
+            }
+            depth++;
+        }
+
+        private void endElement() {
+            depth--;
+            StringBuilder textBuilder = texts[depth];
+            if (textBuilder == null) {
+                path.pop();
+                return;
+            }
+            texts[depth] = null;
+            collectingFrames--;
+            String text = textBuilder.toString();
+            TagPlan tagPlan = plans[depth];
+            for (int ruleIndex : tagPlan.referenceRules) {
+                int crossIndex = crossIndexes[ruleIndex];
+                if (referenceValues[crossIndex] == null && referenceDepths[crossIndex] == depth) {
+                    resolveReference(ruleIndex, text);
+                }
+            }
+            int wrapAbove = depth > 0 ? wrapRules[depth - 1] : Integer.MAX_VALUE;
+            for (int index = 0; index < tagPlan.checkRules.length; index++) {
+                int ruleIndex = tagPlan.checkRules[index];
+                if (wrapAbove < ruleIndex) {
+                    //тег удален правилом addNewTextNode предка раньше, чем дошла очередь до проверки
+                    break;
+                }
+                if (validationLog.isLimitReached(ruleIndex)) {
+                    continue;
+                }
+                validationLog.deferTo(ruleIndex);
+                RuleDefinition rule = rulesList.get(ruleIndex);
+                String nodeName = tagPlan.checkNodeNames[index];
+                if (rule.getKind() == RuleDefinition.Kind.TYPE_VALIDATION) {
+                    if (!patterns[ruleIndex].matcher(text).matches()) {
+                        validationLog.addResult(new ValidationResult(XmlFile.ValidationError.TYPE_ERROR,
+                                nodeName, null, path.location(rulesList, ruleIndex), text));
+                    }
+                } else {
+                    int crossIndex = crossIndexes[ruleIndex];
+                    String referenceValue = referenceValues[crossIndex];
+                    if (referenceValue == null) {
+                        pendingResults.get(crossIndex).add(crossResult(ruleIndex, nodeName, text));
+                    } else if (!text.contains(referenceValue)) {
+                        validationLog.addResult(crossResult(ruleIndex, nodeName, text));
+                    }
+                }
+            }
+            path.pop();
+        }
+
+        private void resolveReference(int ruleIndex, String text) {
+            int crossIndex = crossIndexes[ruleIndex];
+            referenceValues[crossIndex] = text;
+            validationLog.deferTo(ruleIndex);
+            List<ValidationResult> pending = pendingResults.get(crossIndex);
+            for (ValidationResult pendingResult : pending) {
+                if (!pendingResult.getValue().contains(text)) {
+                    validationLog.addResult(pendingResult);
+                }
+            }
+            pending.clear();
+        }
+
+        private ValidationResult crossResult(int ruleIndex, String nodeName, String text) {
+            return new ValidationResult(XmlFile.ValidationError.CROSS_VALIDATION_ERROR,
+                    nodeName, rulesList.get(ruleIndex).getArgument(), path.location(rulesList, ruleIndex), text);
+        }
+    }
+}
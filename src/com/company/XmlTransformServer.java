@@ -0,0 +1,579 @@
+package com.company;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Долгоживущий http-сервис трансформации и валидации. Запуск JVM, загрузка классов, поиск фабрик JAXP
+ * и компиляция правил выполняются один раз на процесс, а не на каждый файл, и JIT успевает прогреться
+ * на потоке документов.
+ * <p>
+ * Запросы:
+ * <ul>
+ *     <li>{@code POST /transform/<набор правил>} - тело запроса обрабатывается набором правил, в ответе
+ *     трансформированный документ;</li>
+ *     <li>{@code POST /validate/<набор правил>} - документ только проверяется {@link XmlStreamValidator}
+ *     или, если валидатор не поддерживает набор правил, на DOM; в ответе лог валидации в виде текста.</li>
+ * </ul>
+ * Тело запроса может быть сжато gzip или zip, см. {@link XmlInput}. Результат валидации передается в заголовках
+ * {@value #VALID_HEADER} и {@value #ERROR_COUNT_HEADER}. Если набор правил не найден, возвращается 404,
+ * если документ не удалось прочитать - 400, если тело запроса больше {@link #setMaxRequestSize(int)} - 413,
+ * если очередь переполнена - 503. Документы читаются безопасными парсерами {@link XmlFactories}, поэтому
+ * документы с DOCTYPE не принимаются.
+ * <p>
+ * Запросы принимаются не больше чем {@link #setConnectionThreads(int)} потоками, поэтому в памяти одновременно
+ * находится ограниченное количество тел запросов. Сервис слушает тот адрес, который передан в
+ * {@link #start(InetSocketAddress)}; для доступа только с этой машины используйте
+ * {@link java.net.InetAddress#getLoopbackAddress()}.
+ * <p>
+ * Потоки http-сервера только читают запросы и ставят их в очередь. Отдельный поток собирает из очереди
+ * пачки до {@link #setBatchSize(int)} запросов, ожидая следующий запрос не дольше {@link #setBatchDelay(long,
+ * TimeUnit)}, и отправляет пачку в пул обработчиков целиком: передача задачи между потоками и поиск набора
+ * правил выполняются один раз на пачку, а не на документ.
+ */
+public class XmlTransformServer implements AutoCloseable {
+
+    public static final String VALID_HEADER = "X-Validation-Valid";
+    public static final String ERROR_COUNT_HEADER = "X-Validation-Error-Count";
+
+    /**
+     * Количество ошибок валидации, после которого обработка документа прекращается, если не задано другое.
+     */
+    public static final int DEFAULT_MAX_VALIDATION_ERRORS = 1000;
+
+    /**
+     * Максимальный размер тела запроса в байтах, если не задан другой: 16 Мб.
+     */
+    public static final int DEFAULT_MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+
+    private static final String TRANSFORM_PATH = "/transform/";
+    private static final String VALIDATE_PATH = "/validate/";
+
+    /**
+     * Поиск набора правил по идентификатору, например {@link RuleSetCache#get(String)}.
+     */
+    public interface RuleSetResolver {
+        /**
+         * @param ruleSetId идентификатор набора правил из пути запроса.
+         * @return набор правил или null, если такого набора нет.
+         */
+        RuleSet resolve(String ruleSetId) throws Exception;
+    }
+
+    private final RuleSetResolver resolver;
+    private final int workerThreads;
+    private int batchSize = 32;
+    private long batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private int queueCapacity = 4096;
+    private int connectionThreads = 64;
+    private int maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+    private int maxValidationErrors = DEFAULT_MAX_VALIDATION_ERRORS;
+    private OutputOptions outputOptions = new OutputOptions();
+    private TransformResultCache resultCache;
+
+    /**
+     * Валидаторы по наборам правил. Набор правил неизменяем, поэтому валидатор не устаревает.
+     * null - набор правил не поддерживается {@link XmlStreamValidator} и проверяется на DOM.
+     */
+    private final Map<RuleSet, XmlStreamValidator> validators = new WeakHashMap<>();
+
+    private HttpServer server;
+    private BlockingQueue<Job> queue;
+    private Thread dispatcher;
+    private ExecutorService workers;
+    private ExecutorService connections;
+    /**
+     * Сервис останавливается: новые запросы в очередь не ставятся.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Конструктор.
+     * @param resolver поиск набора правил по идентификатору.
+     * @param workerThreads количество потоков, обрабатывающих документы.
+     */
+    public XmlTransformServer(RuleSetResolver resolver, int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("workerThreads должно быть больше нуля.");
+        }
+        this.resolver = resolver;
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Максимальное количество запросов в одной пачке.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize должно быть больше нуля.");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Сколько ждать следующий запрос, прежде чем отправить неполную пачку. 0 - отправлять сразу все,
+     * что уже есть в очереди.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setBatchDelay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay не может быть отрицательным.");
+        }
+        this.batchDelayNanos = unit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * Максимальное количество запросов, ожидающих обработки. Остальным отвечается 503.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity должно быть больше нуля.");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Количество потоков, принимающих запросы. Поток ждет, пока запрос будет обработан, поэтому это же
+     * максимальное количество запросов, которые обрабатываются или ждут в очереди одновременно.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setConnectionThreads(int connectionThreads) {
+        if (connectionThreads < 1) {
+            throw new IllegalArgumentException("connectionThreads должно быть больше нуля.");
+        }
+        this.connectionThreads = connectionThreads;
+        return this;
+    }
+
+    /**
+     * Максимальный размер тела запроса в байтах. На запросы большего размера отвечается 413.
+     * По умолчанию {@value #DEFAULT_MAX_REQUEST_SIZE}.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setMaxRequestSize(int maxRequestSize) {
+        if (maxRequestSize < 1) {
+            throw new IllegalArgumentException("maxRequestSize должно быть больше нуля.");
+        }
+        this.maxRequestSize = maxRequestSize;
+        return this;
+    }
+
+    /**
+     * Количество ошибок, после которого валидация документа прекращается.
+     * По умолчанию {@value #DEFAULT_MAX_VALIDATION_ERRORS}.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setMaxValidationErrors(int maxValidationErrors) {
+        this.maxValidationErrors = maxValidationErrors;
+        return this;
+    }
+
+    /**
+     * Параметры записи трансформированных документов.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setOutputOptions(OutputOptions outputOptions) {
+        this.outputOptions = outputOptions;
+        return this;
+    }
+
+    /**
+     * Кэш результатов трансформации: повторно присланные документы не обрабатываются заново.
+     * @param resultCache кэш или null, если кэшировать результаты не нужно.
+     * @return этот сервис.
+     */
+    public XmlTransformServer setResultCache(TransformResultCache resultCache) {
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    /**
+     * Запускает сервис. Параметры нужно задать до запуска.
+     * @param address адрес и порт; порт 0 - любой свободный, см. {@link #getPort()}.
+     * @return этот сервис.
+     * @throws IOException если не удалось открыть порт.
+     */
+    public synchronized XmlTransformServer start(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Сервис уже запущен.");
+        }
+        closed = false;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workers = Executors.newFixedThreadPool(workerThreads, new NamedThreadFactory("xml-transform-worker"));
+        //поток соединения ждет, пока обработчик выполнит его запрос, поэтому потоков соединений больше
+        connections = Executors.newFixedThreadPool(connectionThreads, new NamedThreadFactory("xml-transform-http"));
+        dispatcher = new NamedThreadFactory("xml-transform-dispatcher").newThread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+        dispatcher.start();
+        server = HttpServer.create(address, 0);
+        server.setExecutor(connections);
+        server.createContext(TRANSFORM_PATH, new RequestHandler(TRANSFORM_PATH, true));
+        server.createContext(VALIDATE_PATH, new RequestHandler(VALIDATE_PATH, false));
+        server.start();
+        return this;
+    }
+
+    /**
+     * Порт, на котором запущен сервис.
+     * @return номер порта.
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("Сервис не запущен.");
+        }
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Останавливает сервис. Запросам, которые еще не начали обрабатываться, отвечается 503.
+     */
+    @Override
+    public synchronized void close() {
+        if (server == null) {
+            return;
+        }
+        //запросы, поставленные в очередь после этого, обработчики забирают из нее сами
+        closed = true;
+        server.stop(0);
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Job> rejected = new ArrayList<>();
+        queue.drainTo(rejected);
+        reject(rejected);
+        workers.shutdown();
+        connections.shutdown();
+        server = null;
+    }
+
+    /**
+     * Собирает запросы из очереди в пачки, пока поток не будет прерван.
+     */
+    private void dispatch() {
+        List<Job> batch = new ArrayList<>(batchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + batchDelayNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Job job = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (job == null) {
+                        break;
+                    }
+                    batch.add(job);
+                }
+                final List<Job> jobs = batch;
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(jobs);
+                    }
+                });
+                batch = new ArrayList<>(batchSize);
+            }
+        } catch (InterruptedException e) {
+            reject(batch);
+        }
+    }
+
+    private static void reject(List<Job> jobs) {
+        for (Job job : jobs) {
+            job.complete(Response.text(503, "Сервис остановлен."));
+        }
+    }
+
+    /**
+     * Обрабатывает пачку запросов в потоке пула. Каждый набор правил ищется один раз на пачку.
+     */
+    private void process(List<Job> jobs) {
+        Map<String, RuleSet> ruleSets = new HashMap<>();
+        for (Job job : jobs) {
+            Response response;
+            try {
+                RuleSet ruleSet = ruleSets.get(job.ruleSetId);
+                if (ruleSet == null && !ruleSets.containsKey(job.ruleSetId)) {
+                    ruleSet = resolver.resolve(job.ruleSetId);
+                    ruleSets.put(job.ruleSetId, ruleSet);
+                }
+                if (ruleSet == null) {
+                    response = Response.text(404, "Набор правил " + job.ruleSetId + " не найден.");
+                } else if (job.transform) {
+                    response = transform(ruleSet, job.body);
+                } else {
+                    response = validate(ruleSet, job.body);
+                }
+            } catch (SAXException | XMLStreamException e) {
+                response = Response.text(400, "Не удалось прочитать xml-документ: " + e.getMessage());
+            } catch (Exception e) {
+                response = Response.text(500, String.valueOf(e));
+            }
+            job.complete(response);
+        }
+    }
+
+    private Response transform(RuleSet ruleSet, byte[] body) throws Exception {
+        String contentType = "application/xml; charset=" + outputOptions.getEncoding();
+        if (resultCache != null) {
+            TransformResultCache.Result result = resultCache.transform(body, ruleSet, outputOptions,
+                    maxValidationErrors, XmlFactories.secureDocumentBuilder());
+            return new Response(200, contentType, result.getOutput(), result.getErrorCount());
+        }
+        XmlFile xmlFile = new XmlFile(XmlInput.of(body), XmlFactories.secureDocumentBuilder());
+        xmlFile.setMaxValidationErrors(maxValidationErrors);
+        ruleSet.applyTo(xmlFile);
+        return new Response(200, contentType, xmlFile.toByteArray(outputOptions), xmlFile.getLog().getErrorCount());
+    }
+
+    private Response validate(RuleSet ruleSet, byte[] body) throws Exception {
+        XmlStreamValidator validator;
+        synchronized (validators) {
+            if (validators.containsKey(ruleSet)) {
+                validator = validators.get(ruleSet);
+            } else {
+                try {
+                    validator = new XmlStreamValidator(ruleSet, maxValidationErrors);
+                } catch (UnsupportedOperationException e) {
+                    //набор правил проверяется только на DOM
+                    validator = null;
+                }
+                validators.put(ruleSet, validator);
+            }
+        }
+        XmlValidationLog validationLog;
+        if (validator == null) {
+            XmlFile xmlFile = new XmlFile(XmlInput.of(body), XmlFactories.secureDocumentBuilder());
+            xmlFile.setMaxValidationErrors(maxValidationErrors);
+            ruleSet.applyTo(xmlFile);
+            validationLog = xmlFile.getLog();
+        } else {
+            validationLog = new XmlValidationLog();
+            validationLog.setMaxErrors(maxValidationErrors);
+            List<ValidationResult> results;
+            try (InputStream inputStream = XmlInput.of(body).openStream()) {
+                results = validator.validate(inputStream, XmlFactories.secureXmlInputFactory());
+            }
+            for (ValidationResult result : results) {
+                validationLog.addResult(result);
+            }
+        }
+        return new Response(200, "text/plain; charset=UTF-8",
+                validationLog.getValidationLog().getBytes(StandardCharsets.UTF_8), validationLog.getErrorCount());
+    }
+
+    /**
+     * Принимает запросы одного вида и ставит их в очередь.
+     */
+    private class RequestHandler implements HttpHandler {
+        private final String path;
+        private final boolean transform;
+
+        private RequestHandler(String path, boolean transform) {
+            this.path = path;
+            this.transform = transform;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                send(exchange, execute(exchange));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private Response execute(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                return Response.text(405, "Поддерживается только POST.");
+            }
+            String ruleSetId = exchange.getRequestURI().getPath().substring(path.length());
+            if (ruleSetId.isEmpty()) {
+                return Response.text(404, "Не указан набор правил.");
+            }
+            //тело не читается, если запрос все равно не будет принят
+            if (closed) {
+                return Response.text(503, "Сервис остановлен.");
+            }
+            if (queue.remainingCapacity() == 0) {
+                return Response.text(503, "Очередь запросов переполнена.");
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength != null && parseLength(contentLength) > maxRequestSize) {
+                return tooLarge();
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                return tooLarge();
+            }
+            Job job = new Job(transform, ruleSetId, body);
+            if (!queue.offer(job)) {
+                return Response.text(503, "Очередь запросов переполнена.");
+            }
+            //close() мог уже разобрать очередь, тогда запрос никто не обработает
+            if (closed && queue.remove(job)) {
+                return Response.text(503, "Сервис остановлен.");
+            }
+            try {
+                return job.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Response.text(503, "Сервис остановлен.");
+            }
+        }
+
+        private Response tooLarge() {
+            return Response.text(413, "Размер запроса больше " + maxRequestSize + " байт.");
+        }
+
+        private long parseLength(String contentLength) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                //некорректный заголовок проверяется по фактически прочитанному размеру
+                return -1;
+            }
+        }
+
+        /**
+         * Читает тело запроса.
+         * @return тело запроса или null, если оно больше {@link #setMaxRequestSize(int)}.
+         */
+        private byte[] readBody(InputStream inputStream) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                if (body.size() + read > maxRequestSize) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        }
+
+        private void send(HttpExchange exchange, Response response) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", response.contentType);
+            if (response.errorCount >= 0) {
+                exchange.getResponseHeaders().set(VALID_HEADER, String.valueOf(response.errorCount == 0));
+                exchange.getResponseHeaders().set(ERROR_COUNT_HEADER, String.valueOf(response.errorCount));
+            }
+            exchange.sendResponseHeaders(response.status, response.body.length == 0 ? -1 : response.body.length);
+            if (response.body.length > 0) {
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(response.body);
+                }
+            }
+        }
+    }
+
+    /**
+     * Запрос, ожидающий обработки.
+     */
+    private static class Job {
+        private final boolean transform;
+        private final String ruleSetId;
+        private final byte[] body;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Response response;
+
+        private Job(boolean transform, String ruleSetId, byte[] body) {
+            this.transform = transform;
+            this.ruleSetId = ruleSetId;
+            this.body = body;
+        }
+
+        private void complete(Response response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        private Response await() throws InterruptedException {
+            done.await();
+            return response;
+        }
+    }
+
+    /**
+     * Ответ на запрос.
+     */
+    private static class Response {
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+        /**
+         * Количество ошибок валидации или -1, если документ не обрабатывался.
+         */
+        private final int errorCount;
+
+        private Response(int status, String contentType, byte[] body, int errorCount) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.errorCount = errorCount;
+        }
+
+        private static Response text(int status, String message) {
+            return new Response(status, "text/plain; charset=UTF-8", message.getBytes(StandardCharsets.UTF_8), -1);
+        }
+    }
+
+    /**
+     * Потоки-демоны с именами вида {@code prefix-1}.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
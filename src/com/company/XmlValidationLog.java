@@ -0,0 +1,187 @@
+package com.company;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Лог для валидации xml-документа. Хранит ошибки в порядке обнаружения, но не больше заданного количества:
+ * после этого правила валидации перестают проверять документ. По умолчанию количество ошибок не ограничено.
+ * <p>
+ * Проход, выполняющий несколько правил за один обход документа, - {@link RulePlan} с конца документа
+ * или {@link XmlStreamValidator} с начала, - откладывает ошибки через {@link #startDeferred(int, boolean)}:
+ * они попадают в лог в том же порядке, что и при выполнении правил по одному, - по правилам, а внутри правила
+ * в порядке документа. Отложенных ошибок хранится не больше, чем может попасть в лог, а правила, ошибки
+ * которых в лог уже точно не попадут, перестают проверять документ.
+ * <p>
+ * Количество ошибок - это количество ошибок в логе: ошибки сверх ограничения не учитываются.
+ */
+class XmlValidationLog {
+
+    /**
+     * Количество ошибок, после которого валидация останавливается, если не задано другое: без ограничения.
+     */
+    static final int DEFAULT_MAX_ERRORS = Integer.MAX_VALUE;
+
+    private final List<ValidationResult> results;
+    private int maxErrors;
+    /**
+     * Отложенные ошибки по номерам правил прохода, каждая в порядке обхода документа,
+     * или null, если ошибки пишутся в лог сразу.
+     */
+    private List<ArrayDeque<ValidationResult>> deferredResults;
+    /**
+     * Проход идет с конца документа.
+     */
+    private boolean deferredReverse;
+    private int deferredRule;
+    /**
+     * Сколько ошибок прохода еще поместится в лог.
+     */
+    private int deferredCapacity;
+    /**
+     * Последнее правило прохода, ошибки которого еще могут попасть в лог: ошибки предыдущих правил
+     * идут в логе раньше и уже заполнили его.
+     */
+    private int lastOpenRule;
+
+    XmlValidationLog() {
+        results = new ArrayList<>();
+        maxErrors = DEFAULT_MAX_ERRORS;
+    }
+
+    public void setMaxErrors(int maxErrors) {
+        if (maxErrors < 1) {
+            throw new IllegalArgumentException("Количество ошибок должно быть больше нуля.");
+        }
+        this.maxErrors = maxErrors;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public void addResult(ValidationResult result) {
+        if (deferredResults == null) {
+            if (results.size() < maxErrors) {
+                results.add(result);
+            }
+            return;
+        }
+        if (deferredRule > lastOpenRule) {
+            return;
+        }
+        ArrayDeque<ValidationResult> ruleResults = deferredResults.get(deferredRule);
+        ruleResults.addLast(result);
+        //при обходе с конца у правила остаются последние найденные ошибки
+        if (ruleResults.size() > deferredCapacity) {
+            ruleResults.removeFirst();
+        }
+        int count = 0;
+        for (int index = 0; index <= lastOpenRule; index++) {
+            count += deferredResults.get(index).size();
+            if (count >= deferredCapacity) {
+                //при обходе с начала новые ошибки заполнившего лог правила идут в документе после найденных
+                lastOpenRule = deferredReverse ? index : index - 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Начинает откладывать ошибки прохода, выполняющего несколько правил за один обход документа.
+     * @param ruleCount количество правил прохода.
+     * @param reverse true, если проход идет с конца документа.
+     */
+    void startDeferred(int ruleCount, boolean reverse) {
+        deferredReverse = reverse;
+        deferredResults = new ArrayList<>(ruleCount);
+        for (int index = 0; index < ruleCount; index++) {
+            deferredResults.add(new ArrayDeque<ValidationResult>(0));
+        }
+        deferredCapacity = maxErrors - results.size();
+        lastOpenRule = deferredCapacity > 0 ? ruleCount - 1 : -1;
+    }
+
+    /**
+     * Задает правило прохода, ошибки которого добавляются следующими.
+     * @param ruleIndex номер правила в проходе.
+     */
+    void deferTo(int ruleIndex) {
+        deferredRule = ruleIndex;
+    }
+
+    /**
+     * Переносит отложенные ошибки в лог: по правилам, а внутри правила в порядке документа.
+     * @return количество ошибок каждого правила прохода, попавших в лог.
+     */
+    int[] finishDeferred() {
+        List<ArrayDeque<ValidationResult>> deferred = deferredResults;
+        deferredResults = null;
+        int[] recorded = new int[deferred.size()];
+        for (int rule = 0; rule < deferred.size(); rule++) {
+            Iterator<ValidationResult> iterator = deferredReverse
+                    ? deferred.get(rule).descendingIterator()
+                    : deferred.get(rule).iterator();
+            while (iterator.hasNext() && results.size() < maxErrors) {
+                results.add(iterator.next());
+                recorded[rule]++;
+            }
+        }
+        return recorded;
+    }
+
+    /**
+     * Набрано ли максимальное количество ошибок. Во время прохода - могут ли еще попасть в лог ошибки
+     * текущего правила прохода.
+     * @return true, если дальнейшая валидация не нужна.
+     */
+    public boolean isLimitReached() {
+        return isLimitReached(deferredRule);
+    }
+
+    /**
+     * Набрано ли максимальное количество ошибок. Во время прохода - могут ли еще попасть в лог ошибки
+     * правила прохода с данным номером.
+     * @param ruleIndex номер правила в проходе.
+     * @return true, если дальнейшая проверка этим правилом не нужна.
+     */
+    boolean isLimitReached(int ruleIndex) {
+        if (deferredResults != null) {
+            return ruleIndex > lastOpenRule;
+        }
+        return results.size() >= maxErrors;
+    }
+
+    public List<ValidationResult> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    public String getValidationLog() {
+        return render(results);
+    }
+
+    public boolean isValid() {
+        return results.isEmpty();
+    }
+
+    public int getErrorCount() {
+        return results.size();
+    }
+
+    /**
+     * Собирает сообщения об ошибках в одну строку, по сообщению на строку.
+     * @param results ошибки валидации.
+     * @return текст лога.
+     */
+    static String render(List<ValidationResult> results) {
+        StringBuilder temp = new StringBuilder(results.size() * 64);
+        for(ValidationResult result : results) {
+            temp.append(result.getMessage());
+            temp.append("\n");
+        }
+        return temp.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package com.company;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Валидация компактного дерева должна находить те же ошибки с теми же путями, что и правила над DOM.
+ */
+public class CompactDocumentTest {
+
+    private static final String DOCUMENT = "<root><Document><periodId>p1</periodId><subdocuments>"
+            + "<item><vid>1</vid><name>a<b>c</b></name></item>"
+            + "<item><vid>x</vid><vid>p1</vid></item>"
+            + "<note>n1</note><note>p1<vid>y</vid></note>"
+            + "</subdocuments><trailer><vid>t</vid></trailer></Document></root>";
+
+    @Test
+    public void renamesAndValidationsMatchDom() throws Exception {
+        assertSameAsDom(new RuleSet.Builder()
+                .typeValidation("vid", "^\\d+$")
+                .changeNodeName("item", "row")
+                .changeNodeName("note", "row")
+                .crossValidation("row", "periodId")
+                .typeValidation("vid", "^[a-z]$")
+                .build(), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void addedNodesMatchDom() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .addNewNode("item", "extra")
+                .addNewNode("subdocuments", "row")
+                .addNewTextNode("note", "value")
+                .typeValidation("vid", "^\\d+$")
+                .addNewTextNode("item", "value")
+                .crossValidation("Document", "vid")
+                .typeValidation("vid", "^\\d+$")
+                .build();
+        for (int maxErrors = 1; maxErrors <= 5; maxErrors++) {
+            assertSameAsDom(ruleSet, maxErrors);
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void validationOfAddedNodeIsRejected() throws Exception {
+        try (CompactDocument document = parse()) {
+            document.validate(new RuleSet.Builder()
+                    .addNewTextNode("name", "value")
+                    .typeValidation("value", "^a$")
+                    .build());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void validationAfterChangeRootTagIsRejected() throws Exception {
+        try (CompactDocument document = parse()) {
+            document.validate(new RuleSet.Builder()
+                    .changeRootTag("vid", "trailer")
+                    .typeValidation("vid", "^\\d+$")
+                    .build());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void textIsUnavailableAfterClose() throws Exception {
+        CompactDocument document = parse();
+        document.close();
+        assertTrue(document.getElementCount() > 0);
+        document.getTextContent(0);
+    }
+
+    private static void assertSameAsDom(RuleSet ruleSet, int maxErrors) throws Exception {
+        XmlFile xmlFile = new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)))
+                .setMaxValidationErrors(maxErrors);
+        ruleSet.applyTo(xmlFile);
+        List<String> compact = new ArrayList<>();
+        try (CompactDocument document = parse()) {
+            for (ValidationResult result : document.validate(ruleSet, maxErrors)) {
+                compact.add(result.getMessage());
+            }
+        }
+        List<String> dom = new ArrayList<>();
+        for (ValidationResult result : xmlFile.getValidationResults()) {
+            dom.add(result.getMessage());
+        }
+        assertTrue(dom.size() > 0);
+        assertEquals("maxErrors=" + maxErrors, dom, compact);
+    }
+
+    private static CompactDocument parse() throws Exception {
+        return CompactDocument.parse(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,174 @@
+package com.company;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Хранилище описаний и кэш наборов правил на встроенной базе H2 со схемой из {@link JdbcDbEntityRepository}.
+ */
+public class JdbcDbEntityRepositoryTest {
+
+    private static final AtomicInteger DATABASE_NUMBER = new AtomicInteger();
+    private static final String DOCUMENT = "<root><Document><periodId>12a</periodId></Document></root>";
+
+    private JdbcDataSource dataSource;
+    private Connection keepAlive;
+    private JdbcDbEntityRepository repository;
+
+    @Before
+    public void createSchema() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:rules" + DATABASE_NUMBER.incrementAndGet());
+        //база в памяти живет, пока открыто хотя бы одно соединение
+        keepAlive = dataSource.getConnection();
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("CREATE TABLE db_entity (id INT PRIMARY KEY, form_type VARCHAR(64) NOT NULL,"
+                    + " name VARCHAR(255) NOT NULL, changes_name VARCHAR(255), parent_tag VARCHAR(255),"
+                    + " child_tag VARCHAR(255), pattern_type VARCHAR(1024))");
+            statement.execute("CREATE TABLE db_entity_version (form_type VARCHAR(64) PRIMARY KEY,"
+                    + " version BIGINT NOT NULL)");
+        }
+        repository = new JdbcDbEntityRepository(dataSource);
+    }
+
+    @After
+    public void dropDatabase() throws SQLException {
+        keepAlive.close();
+    }
+
+    @Test
+    public void loadsEntitiesOrderedById() throws SQLException {
+        insertEntity(2, "f1", "periodId", null, null, null, "^\\d+$");
+        insertEntity(1, "f1", "Document", "Form", null, null, null);
+        insertEntity(3, "f2", "other", null, null, null, null);
+        setVersion("f1", 7);
+
+        List<DbEntity> entities = repository.findByFormType("f1");
+        assertEquals(2, entities.size());
+        assertEquals(1, entities.get(0).id);
+        assertEquals("Document", entities.get(0).name);
+        assertEquals("Form", entities.get(0).changesName);
+        assertNull(entities.get(0).patternType);
+        assertEquals("periodId", entities.get(1).name);
+        assertEquals("^\\d+$", entities.get(1).patternType);
+        assertEquals(7, repository.getVersion("f1"));
+    }
+
+    @Test
+    public void unknownFormHasNoEntitiesAndZeroVersion() throws SQLException {
+        assertTrue(repository.findByFormType("missing").isEmpty());
+        assertEquals(0, repository.getVersion("missing"));
+    }
+
+    @Test
+    public void cacheReloadsOnlyChangedForms() throws Exception {
+        insertEntity(1, "f1", "Document", "Form", null, null, null);
+        setVersion("f1", 1);
+        insertEntity(2, "f2", "periodId", null, null, null, "^\\d+$");
+        setVersion("f2", 1);
+
+        try (RuleSetCache cache = new RuleSetCache(repository)) {
+            RuleSet f1 = cache.get("f1");
+            RuleSet f2 = cache.get("f2");
+            assertSame(f1, cache.get("f1"));
+            assertEquals(1, cache.getVersion("f1"));
+            assertTrue(transform(f1).contains("<Form>"));
+
+            updateEntity(1, "Renamed");
+            setVersion("f1", 2);
+            cache.refresh();
+
+            assertNull(cache.getLastRefreshError());
+            assertEquals(2, cache.getVersion("f1"));
+            assertTrue(transform(cache.get("f1")).contains("<Renamed>"));
+            assertSame(f2, cache.get("f2"));
+        }
+    }
+
+    @Test
+    public void cacheInstallsRolledBackVersion() throws Exception {
+        insertEntity(1, "f1", "Document", "Form", null, null, null);
+        setVersion("f1", 5);
+
+        try (RuleSetCache cache = new RuleSetCache(repository)) {
+            assertTrue(transform(cache.get("f1")).contains("<Form>"));
+
+            //откат описаний к предыдущей версии
+            updateEntity(1, "Old");
+            setVersion("f1", 4);
+            cache.refresh();
+
+            assertEquals(4, cache.getVersion("f1"));
+            assertTrue(transform(cache.get("f1")).contains("<Old>"));
+        }
+    }
+
+    @Test
+    public void validationRulesComeFromDatabase() throws Exception {
+        insertEntity(1, "f1", "periodId", null, null, null, "^\\d+$");
+        setVersion("f1", 1);
+
+        try (RuleSetCache cache = new RuleSetCache(repository)) {
+            XmlFile xmlFile = new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+            cache.get("f1").applyTo(xmlFile);
+            assertFalse(xmlFile.isValid());
+            assertEquals(1, xmlFile.getValidationResults().size());
+        }
+    }
+
+    private static String transform(RuleSet ruleSet) throws Exception {
+        XmlFile xmlFile = new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        ruleSet.applyTo(xmlFile);
+        return new String(xmlFile.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void insertEntity(int id, String formType, String name, String changesName, String parentTag,
+                              String childTag, String patternType) throws SQLException {
+        try (PreparedStatement statement = keepAlive.prepareStatement("INSERT INTO db_entity"
+                + " (id, form_type, name, changes_name, parent_tag, child_tag, pattern_type)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            statement.setInt(1, id);
+            statement.setString(2, formType);
+            statement.setString(3, name);
+            statement.setString(4, changesName);
+            statement.setString(5, parentTag);
+            statement.setString(6, childTag);
+            statement.setString(7, patternType);
+            statement.executeUpdate();
+        }
+    }
+
+    private void updateEntity(int id, String changesName) throws SQLException {
+        try (PreparedStatement statement = keepAlive.prepareStatement(
+                "UPDATE db_entity SET changes_name = ? WHERE id = ?")) {
+            statement.setString(1, changesName);
+            statement.setInt(2, id);
+            statement.executeUpdate();
+        }
+    }
+
+    private void setVersion(String formType, long version) throws SQLException {
+        try (PreparedStatement statement = keepAlive.prepareStatement(
+                "MERGE INTO db_entity_version (form_type, version) KEY (form_type) VALUES (?, ?)")) {
+            statement.setString(1, formType);
+            statement.setLong(2, version);
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.company;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Параллельное выполнение должно давать тот же документ и те же ошибки, в том же порядке и с теми же путями,
+ * что и выполнение правил по одному.
+ */
+public class ParallelRuleExecutorTest {
+
+    private static final String DOCUMENT = "<root><Document><periodId>p1</periodId><subdocuments>"
+            + "<note>n1</note>"
+            + "<item><vid>1</vid><name>a</name></item>"
+            + "<note>2</note><note>n3</note>"
+            + "<item><vid>x</vid></item>"
+            + "<item><vid>y</vid><vid>2</vid><vid>z</vid></item>"
+            + "<row>r</row><note>n4</note>"
+            + "</subdocuments><trailer><vid>t</vid></trailer></Document></root>";
+
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void closePool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void errorsFollowRuleAndDocumentOrder() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .changeNodeName("Document", "Form")
+                .typeValidation("vid", "^\\d+$")
+                .typeValidation("note", "^\\d+$")
+                .changeNodeName("item", "row")
+                .typeValidation("row", "^\\d+$")
+                .addNewNode("subdocuments", "row")
+                .changeNodeName("subdocuments", "list")
+                .typeValidation("row", "^\\d+$")
+                .typeValidation("vid", "^\\d+$")
+                .build();
+        assertSameAsSequential(ruleSet, "item", Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void errorLimitIsSharedByAllParts() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("vid", "^\\d+$")
+                .typeValidation("note", "^\\d+$")
+                .changeNodeName("item", "row")
+                .typeValidation("row", "^\\d+$")
+                .build();
+        for (int maxErrors = 1; maxErrors <= 12; maxErrors++) {
+            assertSameAsSequential(ruleSet, "item", maxErrors);
+        }
+    }
+
+    @Test
+    public void nonLocalRulesRunOverWholeDocument() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("vid", "^\\d+$")
+                .crossValidation("note", "periodId")
+                .changeNodeName("item", "entry")
+                .typeValidation("vid", "^[a-z]$")
+                .build();
+        assertSameAsSequential(ruleSet, "item", Integer.MAX_VALUE);
+    }
+
+    private static void assertSameAsSequential(RuleSet ruleSet, String splitTagName, int maxErrors)
+            throws Exception {
+        XmlFile sequential = newXmlFile(maxErrors);
+        for (RuleDefinition definition : ruleSet.getDefinitions()) {
+            XmlFile.createRule(definition).runRule(sequential);
+        }
+        XmlFile parallel = newXmlFile(maxErrors);
+        new ParallelRuleExecutor(ruleSet, splitTagName, pool).execute(parallel);
+
+        List<String> expected = messages(sequential);
+        assertTrue(expected.size() > 0);
+        assertEquals("maxErrors=" + maxErrors, expected, messages(parallel));
+        assertEquals(new String(sequential.toByteArray(), StandardCharsets.UTF_8),
+                new String(parallel.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static XmlFile newXmlFile(int maxErrors) throws Exception {
+        return new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)))
+                .setMaxValidationErrors(maxErrors);
+    }
+
+    private static List<String> messages(XmlFile xmlFile) {
+        List<String> messages = new ArrayList<>();
+        for (ValidationResult result : xmlFile.getValidationResults()) {
+            messages.add(result.getMessage());
+        }
+        return messages;
+    }
+}
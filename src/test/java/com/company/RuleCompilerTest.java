@@ -0,0 +1,263 @@
+package com.company;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Скомпилированный план должен находить те же ошибки и давать тот же документ, что и правила в исходном порядке.
+ */
+public class RuleCompilerTest {
+
+    private static final String DOCUMENT = "<root><P><X>a</X><R>1</R></P><X>b</X><R>2</R><Y>c</Y></root>";
+    private static final String REFERENCE_DOCUMENT = "<root><P><R>1</R></P><R>2</R><Y>c2</Y></root>";
+
+    @Test
+    public void typeValidationIsNotMovedBeforeTextWrap() throws Exception {
+        assertSameErrors(new RuleSet.Builder()
+                .addNewTextNode("P", "t")
+                .typeValidation("X", "^\\d+$")
+                .build());
+    }
+
+    @Test
+    public void crossValidationIsNotMovedBeforeTextWrap() throws Exception {
+        //после оборачивания первым тегом R становится тег вне P, и ошибки нет
+        assertSameErrors(new RuleSet.Builder()
+                .addNewTextNode("P", "t")
+                .crossValidation("Y", "R")
+                .build(), REFERENCE_DOCUMENT);
+    }
+
+    @Test
+    public void repeatedValidationAfterTextWrapIsKept() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .crossValidation("Y", "R")
+                .addNewTextNode("P", "t")
+                .crossValidation("Y", "R")
+                .build();
+        assertSameErrors(ruleSet);
+        assertEquals(3, RuleCompiler.compile(ruleSet).getRuleCount());
+    }
+
+    @Test
+    public void duplicatesAreRemoved() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("X", "^\\d+$")
+                .changeNodeName("Y", "Z")
+                .typeValidation("X", "^\\d+$")
+                .changeNodeName("Y", "Z")
+                .addNewNode("X", "q")
+                .addNewNode("X", "q")
+                .build();
+        ExecutionPlan plan = RuleCompiler.compile(ruleSet);
+        assertEquals(6, plan.getSourceRuleCount());
+        //повтор addNewNode добавляет второй тег и не удаляется
+        assertEquals(Arrays.asList(
+                new RuleDefinition(RuleDefinition.Kind.TYPE_VALIDATION, "X", "^\\d+$"),
+                new RuleDefinition(RuleDefinition.Kind.CHANGE_NODE_NAME, "Y", "Z"),
+                new RuleDefinition(RuleDefinition.Kind.ADD_NEW_NODE, "X", "q"),
+                new RuleDefinition(RuleDefinition.Kind.ADD_NEW_NODE, "X", "q")), plan.getDefinitions());
+        //повтор проверки находил те же ошибки еще раз
+        assertEquals(new ArrayList<>(new LinkedHashSet<>(messages(ruleSet, DOCUMENT))),
+                messages(RuleSet.fromPlan(plan), DOCUMENT));
+    }
+
+    @Test
+    public void renameIsFusedWithWrapAcrossIndependentRules() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .changeNodeName("Y", "Z")
+                .addNewNode("P", "q")
+                .addNewTextNode("Z", "t")
+                .typeValidation("X", "^\\d+$")
+                .build();
+        assertEquals(Arrays.asList(
+                new RuleDefinition(RuleDefinition.Kind.CHANGE_NODE_NAME, "Y", "Z"),
+                new RuleDefinition(RuleDefinition.Kind.ADD_NEW_TEXT_NODE, "Z", "t"),
+                new RuleDefinition(RuleDefinition.Kind.ADD_NEW_NODE, "P", "q"),
+                new RuleDefinition(RuleDefinition.Kind.TYPE_VALIDATION, "X", "^\\d+$")),
+                RuleCompiler.compile(ruleSet).getDefinitions());
+        assertSameResult(ruleSet);
+    }
+
+    @Test
+    public void validationIsMovedBeforeIndependentMutations() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .changeNodeName("Y", "Z")
+                .addNewNode("P", "q")
+                .typeValidation("X", "^\\d+$")
+                .build();
+        assertEquals(new RuleDefinition(RuleDefinition.Kind.TYPE_VALIDATION, "X", "^\\d+$"),
+                RuleCompiler.compile(ruleSet).getDefinitions().get(0));
+        assertSameResult(ruleSet);
+    }
+
+    @Test
+    public void sequentialRenameChainIsAccepted() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .changeNodeName("X", "Y")
+                .changeNodeName("Y", "R")
+                .changeNodeName("R", "X")
+                .typeValidation("X", "^\\d+$")
+                .build();
+        assertSameResult(ruleSet);
+    }
+
+    @Test
+    public void conflictingRulesAreRejectedTogether() {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .changeNodeName("X", "Y")
+                .changeNodeName("X", "Z")
+                .addNewNode("P", "P")
+                .build();
+        try {
+            RuleCompiler.compile(ruleSet);
+            fail();
+        } catch (IllegalArgumentException e) {
+            String[] errors = e.getMessage().split("\n");
+            assertEquals(e.getMessage(), 2, errors.length);
+            assertTrue(errors[0], errors[0].contains("уже переименован в Y"));
+            assertTrue(errors[1], errors[1].contains("тот же тег"));
+        }
+    }
+
+    @Test
+    public void renameOfCreatedTagIsNotConflict() throws Exception {
+        assertSameResult(new RuleSet.Builder()
+                .changeNodeName("X", "Y")
+                .addNewNode("P", "X")
+                .changeNodeName("X", "Z")
+                .build());
+    }
+
+    @Test
+    public void specIsParsed() throws Exception {
+        String spec = "<rules>"
+                + "<typeValidation target=\"R\" pattern=\"^\\d+$\"/>"
+                + "<crossValidation target=\"Y\" reference=\"X\"/>"
+                + "<addNewTextNode target=\"X\" node=\"v\"/>"
+                + "<addNewNode target=\"P\" node=\"list\"/>"
+                + "<changeRootTag target=\"R\" parent=\"P\"/>"
+                + "<changeNodeName target=\"P\" name=\"Form\"/>"
+                + "<entity name=\"Y\" changesName=\"period\" patternType=\"^\\d+$\"/>"
+                + "</rules>";
+        ExecutionPlan plan = RuleCompiler.compile(XmlInput.of(spec.getBytes(StandardCharsets.UTF_8)));
+        RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("R", "^\\d+$")
+                .crossValidation("Y", "X")
+                .addNewTextNode("X", "v")
+                .addNewNode("P", "list")
+                .changeRootTag("R", "P")
+                .changeNodeName("P", "Form")
+                .dbEntity(new DbEntity().setName("Y").setChangesName("period").setPatternType("^\\d+$"))
+                .build();
+        assertEquals(RuleCompiler.compile(ruleSet).getDefinitions(), plan.getDefinitions());
+        assertEquals(ruleSet.getDefinitions().size(), plan.getSourceRuleCount());
+    }
+
+    @Test
+    public void specErrorsAreCollected() throws Exception {
+        String spec = "<rules><renameNode target=\"X\" name=\"Y\"/><typeValidation target=\"1X\" pattern=\"x\"/>"
+                + "<typeValidation target=\"X\" pattern=\"(\"/></rules>";
+        try {
+            RuleCompiler.compile(XmlInput.of(spec.getBytes(StandardCharsets.UTF_8)));
+            fail();
+        } catch (IllegalArgumentException e) {
+            String[] errors = e.getMessage().split("\n");
+            assertEquals(e.getMessage(), 3, errors.length);
+            assertTrue(errors[0], errors[0].contains("renameNode"));
+            assertTrue(errors[1], errors[1].contains("1X"));
+            assertTrue(errors[2], errors[2].contains("неверный паттерн"));
+        }
+    }
+
+    @Test
+    public void planSurvivesBinaryFormat() throws Exception {
+        ExecutionPlan plan = samplePlan();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        plan.writeTo(output);
+        ExecutionPlan read = ExecutionPlan.readFrom(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(plan.getDefinitions(), read.getDefinitions());
+        assertEquals(plan.getSourceRuleCount(), read.getSourceRuleCount());
+        byte[] damaged = output.toByteArray();
+        damaged[0] = 0;
+        try {
+            ExecutionPlan.readFrom(new ByteArrayInputStream(damaged));
+            fail();
+        } catch (IOException e) {
+            //ожидаемо
+        }
+    }
+
+    @Test
+    public void planSurvivesJavaSerialization() throws Exception {
+        ExecutionPlan plan = samplePlan();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutput = new ObjectOutputStream(output)) {
+            objectOutput.writeObject(plan);
+        }
+        ExecutionPlan read;
+        try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            read = (ExecutionPlan) objectInput.readObject();
+        }
+        assertEquals(plan.getDefinitions(), read.getDefinitions());
+        assertEquals(plan.getSourceRuleCount(), read.getSourceRuleCount());
+    }
+
+    private static ExecutionPlan samplePlan() {
+        return RuleCompiler.compile(new RuleSet.Builder()
+                .changeNodeName("Y", "Z")
+                .typeValidation("X", "^\\d+$")
+                .typeValidation("X", "^\\d+$")
+                .crossValidation("Z", "R")
+                .addNewTextNode("Z", "t")
+                .changeRootTag("R", "P")
+                .build());
+    }
+
+    private static void assertSameErrors(RuleSet ruleSet) throws Exception {
+        assertSameErrors(ruleSet, DOCUMENT);
+    }
+
+    private static void assertSameErrors(RuleSet ruleSet, String document) throws Exception {
+        RuleSet compiled = RuleSet.fromPlan(RuleCompiler.compile(ruleSet));
+        assertEquals(messages(ruleSet, document), messages(compiled, document));
+    }
+
+    /**
+     * Сравнивает и ошибки, и итоговый документ.
+     */
+    private static void assertSameResult(RuleSet ruleSet) throws Exception {
+        RuleSet compiled = RuleSet.fromPlan(RuleCompiler.compile(ruleSet));
+        XmlFile expected = new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        ruleSet.applyTo(expected);
+        XmlFile actual = new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        compiled.applyTo(actual);
+        assertEquals(expected.getValidationLog(), actual.getValidationLog());
+        assertEquals(new String(expected.toByteArray(), StandardCharsets.UTF_8),
+                new String(actual.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static List<String> messages(RuleSet ruleSet, String document) throws Exception {
+        XmlFile xmlFile = new XmlFile(XmlInput.of(document.getBytes(StandardCharsets.UTF_8)));
+        ruleSet.applyTo(xmlFile);
+        List<String> messages = new ArrayList<>();
+        for (ValidationResult result : xmlFile.getValidationResults()) {
+            messages.add(result.getMessage());
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,103 @@
+package com.company;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Проход, выполняющий несколько правил сразу, должен находить те же ошибки, что и правила по одному,
+ * и соблюдать ограничение количества ошибок.
+ */
+public class RulePlanTest {
+
+    private static final String DOCUMENT = "<root><a>1</a><b>x</b><a>y</a><c><a>z</a><b>2</b><a>w</a></c>"
+            + "<b>v</b><a>3</a><c><b>u</b></c></root>";
+
+    @Test
+    public void fusedStageMatchesSequentialUnderEveryLimit() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("a", "^\\d+$")
+                .changeNodeName("b", "a")
+                .typeValidation("a", "^\\d+$")
+                .addNewNode("c", "d")
+                .changeNodeName("c", "b")
+                .typeValidation("b", "^\\d+$")
+                .build();
+        assertEquals(1, new RulePlan(ruleSet.getDefinitions()).getStageCount());
+        for (int maxErrors = 1; maxErrors <= 14; maxErrors++) {
+            XmlFile sequential = newXmlFile(DOCUMENT, maxErrors);
+            for (RuleDefinition definition : ruleSet.getDefinitions()) {
+                XmlFile.createRule(definition).runRule(sequential);
+            }
+            XmlFile fused = newXmlFile(DOCUMENT, maxErrors);
+            ruleSet.applyTo(fused);
+            assertEquals("maxErrors=" + maxErrors, messages(sequential), messages(fused));
+            assertEquals(sequential.getLog().getErrorCount(), fused.getLog().getErrorCount());
+        }
+    }
+
+    @Test
+    public void limitBoundsErrorsReportedForManySiblings() throws Exception {
+        StringBuilder document = new StringBuilder("<root>");
+        for (int index = 0; index < 20000; index++) {
+            document.append("<periodId>p").append(index).append("</periodId>");
+        }
+        document.append("</root>");
+        final List<Integer> reported = new ArrayList<>();
+        XmlFile xmlFile = newXmlFile(document.toString(), 2).setRuleListener(new RuleListener() {
+            @Override
+            public void documentParsed(long nanos) {
+                //empty
+            }
+
+            @Override
+            public void ruleExecuted(String rule, long nanos, int matchedNodes, int mutations,
+                                     int validationErrors) {
+                reported.add(validationErrors);
+            }
+
+            @Override
+            public void rulesExecuted(long nanos, int validationErrors) {
+                reported.add(validationErrors);
+            }
+
+            @Override
+            public void documentSerialized(long nanos) {
+                //empty
+            }
+        });
+        new RuleSet.Builder()
+                .typeValidation("periodId", "^\\d+$")
+                .changeNodeName("periodId", "period")
+                .build()
+                .applyTo(xmlFile);
+        List<String> messages = messages(xmlFile);
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0), messages.get(0).endsWith("(/root/periodId)"));
+        assertTrue(messages.get(1), messages.get(1).endsWith("(/root/periodId[2])"));
+        assertEquals(2, xmlFile.getLog().getErrorCount());
+        //ошибки правила валидации, правила переименования и всего документа
+        assertEquals(3, reported.size());
+        assertEquals(Integer.valueOf(2), reported.get(0));
+        assertEquals(Integer.valueOf(0), reported.get(1));
+        assertEquals(Integer.valueOf(2), reported.get(2));
+    }
+
+    private static XmlFile newXmlFile(String document, int maxErrors) throws Exception {
+        return new XmlFile(XmlInput.of(document.getBytes(StandardCharsets.UTF_8)))
+                .setMaxValidationErrors(maxErrors);
+    }
+
+    private static List<String> messages(XmlFile xmlFile) {
+        List<String> messages = new ArrayList<>();
+        for (ValidationResult result : xmlFile.getValidationResults()) {
+            messages.add(result.getMessage());
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,58 @@
+package com.company;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Записи кэша находятся по содержимому документа, в том числе после перезапуска с каталогом на диске.
+ */
+public class TransformResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RuleSet ruleSet = new RuleSet.Builder()
+            .changeNodeName("a", "b")
+            .typeValidation("b", "^\\d+$")
+            .build();
+    private final OutputOptions options = new OutputOptions().setOmitXmlDeclaration(true);
+
+    @Test
+    public void sameDocumentIsServedFromCache() throws Exception {
+        TransformResultCache cache = new TransformResultCache(1024 * 1024);
+        TransformResultCache.Result first = cache.transform(bytes("<r><a>x</a></r>"), ruleSet, options, 10);
+        TransformResultCache.Result second = cache.transform(bytes("<r><a>1</a></r>"), ruleSet, options, 10);
+        assertEquals(1, first.getErrorCount());
+        assertEquals(0, second.getErrorCount());
+        cache.transform(bytes("<r><a>x</a></r>"), ruleSet, options, 10);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void spilledEntriesSurviveRestart() throws Exception {
+        File directory = folder.newFolder();
+        TransformResultCache cache = new TransformResultCache(0).setSpillDirectory(directory, 1024 * 1024);
+        TransformResultCache.Result result = cache.transform(bytes("<r><a>x</a></r>"), ruleSet, options, 10);
+        assertNull(cache.getLastSpillError());
+
+        TransformResultCache restarted = new TransformResultCache(0).setSpillDirectory(directory, 1024 * 1024);
+        assertEquals(cache.getDiskBytes(), restarted.getDiskBytes());
+        TransformResultCache.Result cached = restarted.transform(bytes("<r><a>x</a></r>"), ruleSet, options, 10);
+        assertEquals(1, restarted.getHitCount());
+        assertEquals(new String(result.getOutput(), StandardCharsets.UTF_8),
+                new String(cached.getOutput(), StandardCharsets.UTF_8));
+        assertEquals(result.getValidationLog(), cached.getValidationLog());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,96 @@
+package com.company;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Потоковый трансформатор должен находить те же ошибки, что и выполнение правил над DOM.
+ */
+public class XmlStreamTransformerTest {
+
+    @Test
+    public void rulesAfterAddNewTextNodeSkipWrappedDescendants() throws Exception {
+        assertSameErrorsAsDom(new RuleSet.Builder()
+                .addNewTextNode("a", "x")
+                .typeValidation("b", "^\\d+$")
+                .build(), "<root><a><b>foo</b></a><b>bar</b></root>");
+        assertSameErrorsAsDom(new RuleSet.Builder()
+                .typeValidation("b", "^\\d+$")
+                .addNewTextNode("a", "x")
+                .crossValidation("c", "b")
+                .build(), "<root><a><b>foo</b></a><b>1</b><c>12</c></root>");
+    }
+
+    @Test
+    public void validationOfCreatedTagIsRejected() {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .addNewNode("a", "x")
+                .typeValidation("x", "^\\d+$")
+                .build();
+        try {
+            new XmlStreamTransformer(ruleSet);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //ожидаемо
+        }
+        try {
+            new XmlStreamTransformer()
+                    .addNewTextNode("a", "x")
+                    .crossValidation("b", "x")
+                    .transform(new ByteArrayInputStream(bytes("<root/>")), new ByteArrayOutputStream());
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //ожидаемо
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void pendingCrossValidationIsBoundedByLimit() throws Exception {
+        StringBuilder document = new StringBuilder("<root>");
+        for (int index = 0; index < 100; index++) {
+            document.append("<c>v").append(index).append("</c>");
+        }
+        document.append("<ref>w</ref></root>");
+        XmlStreamTransformer transformer = new XmlStreamTransformer(new RuleSet.Builder()
+                .crossValidation("c", "ref")
+                .build()).setMaxValidationErrors(3);
+        transformer.transform(new ByteArrayInputStream(bytes(document.toString())), new ByteArrayOutputStream());
+        List<ValidationResult> results = transformer.getValidationResults();
+        assertEquals(3, results.size());
+        assertTrue(results.get(2).getMessage(), results.get(2).getMessage().endsWith("(/root/c[3])"));
+    }
+
+    private static void assertSameErrorsAsDom(RuleSet ruleSet, String document) throws Exception {
+        XmlFile xmlFile = new XmlFile(XmlInput.of(bytes(document)));
+        ruleSet.applyTo(xmlFile);
+        XmlStreamTransformer transformer = new XmlStreamTransformer(ruleSet);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        transformer.transform(new ByteArrayInputStream(bytes(document)), output);
+        assertEquals(messages(xmlFile.getValidationResults()), messages(transformer.getValidationResults()));
+        assertEquals(new String(xmlFile.toByteArray(), StandardCharsets.UTF_8).replaceAll("<\\?xml[^>]*\\?>", ""),
+                output.toString("UTF-8").replaceAll("<\\?xml[^>]*\\?>", ""));
+    }
+
+    private static List<String> messages(List<ValidationResult> results) {
+        List<String> messages = new ArrayList<>();
+        for (ValidationResult result : results) {
+            messages.add(result.getMessage());
+        }
+        return messages;
+    }
+
+    private static byte[] bytes(String document) {
+        return document.getBytes(StandardCharsets.UTF_8);
+    }
+}
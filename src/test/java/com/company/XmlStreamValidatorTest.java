@@ -0,0 +1,57 @@
+package com.company;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Валидатор должен находить те же ошибки и в том же порядке, что и {@link XmlFile}, при любом ограничении.
+ */
+public class XmlStreamValidatorTest {
+
+    private static final String DOCUMENT = "<root><b>x</b><a>1</a><c>k</c><a>y</a><b>2</b><d>q</d><a>z</a>"
+            + "<b>v</b><c>m</c><ref>e</ref><c>n</c><a>w</a></root>";
+
+    @Test
+    public void errorsFollowRuleOrderUnderEveryLimit() throws Exception {
+        RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("a", "^\\d+$")
+                .crossValidation("c", "ref")
+                .changeNodeName("b", "bb")
+                .typeValidation("bb", "^\\d+$")
+                .addNewTextNode("d", "t")
+                .typeValidation("c", "^[a-m]$")
+                .build();
+        for (int maxErrors = 1; maxErrors <= 12; maxErrors++) {
+            XmlFile xmlFile = new XmlFile(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)))
+                    .setMaxValidationErrors(maxErrors);
+            ruleSet.applyTo(xmlFile);
+            List<ValidationResult> results = new XmlStreamValidator(ruleSet, maxErrors)
+                    .validate(XmlInput.of(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("maxErrors=" + maxErrors, messages(xmlFile.getValidationResults()), messages(results));
+        }
+    }
+
+    @Test
+    public void limitMustBePositive() {
+        try {
+            new XmlStreamValidator(new RuleSet.Builder().typeValidation("a", "^\\d+$").build(), 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //ожидаемо
+        }
+    }
+
+    private static List<String> messages(List<ValidationResult> results) {
+        List<String> messages = new ArrayList<>();
+        for (ValidationResult result : results) {
+            messages.add(result.getMessage());
+        }
+        return messages;
+    }
+}
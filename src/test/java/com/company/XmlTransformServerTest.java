@@ -0,0 +1,119 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Сервис не должен читать внешние сущности и принимать запросы больше заданного размера, а обычные парсеры
+ * должны читать DTD.
+ */
+public class XmlTransformServerTest {
+
+    private XmlTransformServer server;
+    private File secret;
+
+    @Before
+    public void startServer() throws Exception {
+        final RuleSet ruleSet = new RuleSet.Builder()
+                .typeValidation("vid", "^\\d+$")
+                .build();
+        server = new XmlTransformServer(new XmlTransformServer.RuleSetResolver() {
+            @Override
+            public RuleSet resolve(String ruleSetId) {
+                return "default".equals(ruleSetId) ? ruleSet : null;
+            }
+        }, 2).setMaxRequestSize(1024);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        secret = File.createTempFile("secret", ".txt");
+        Files.write(secret.toPath(), "top-secret".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+        secret.delete();
+    }
+
+    @Test
+    public void externalEntitiesAreNotResolved() throws Exception {
+        String document = "<?xml version=\"1.0\"?><!DOCTYPE root [<!ENTITY xxe SYSTEM \""
+                + secret.toURI() + "\">]><root><vid>&xxe;</vid></root>";
+        for (String path : new String[] {"/transform/default", "/validate/default"}) {
+            HttpURLConnection connection = post(path, document.getBytes(StandardCharsets.UTF_8));
+            assertEquals(path, 400, connection.getResponseCode());
+            assertFalse(path, read(connection).contains("top-secret"));
+        }
+    }
+
+    @Test
+    public void localParsersStillReadDoctype() throws Exception {
+        byte[] document = "<?xml version=\"1.0\"?><!DOCTYPE root [<!ENTITY code \"42\">]><root><vid>&code;</vid></root>"
+                .getBytes(StandardCharsets.UTF_8);
+        XmlFile xmlFile = new XmlFile(XmlInput.of(document));
+        new RuleSet.Builder().typeValidation("vid", "^\\d+$").build().applyTo(xmlFile);
+        assertTrue(xmlFile.isValid());
+        assertTrue(new XmlStreamValidator(new RuleSet.Builder().typeValidation("vid", "^\\d+$").build())
+                .validate(XmlInput.of(document)).isEmpty());
+    }
+
+    @Test
+    public void oversizedRequestIsRejected() throws Exception {
+        byte[] body = new byte[2048];
+        HttpURLConnection connection = post("/transform/default", body);
+        assertEquals(413, connection.getResponseCode());
+    }
+
+    @Test
+    public void validDocumentIsStillProcessed() throws Exception {
+        HttpURLConnection connection = post("/validate/default",
+                "<root><vid>x</vid></root>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("1", connection.getHeaderField(XmlTransformServer.ERROR_COUNT_HEADER));
+    }
+
+    private HttpURLConnection post(String path, byte[] body) throws IOException {
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(body);
+        }
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getResponseCode() < 400
+                ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (inputStream == null) {
+            return "";
+        }
+        try (InputStream body = inputStream) {
+            byte[] buffer = new byte[8192];
+            StringBuilder text = new StringBuilder();
+            int read;
+            while ((read = body.read(buffer)) > 0) {
+                text.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.company;
+
+import org.junit.Test;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Движок xslt должен давать тот же документ, что и выполнение правил над DOM, и отклонять правила,
+ * которые не выполняет.
+ */
+public class XsltRuleEngineTest {
+
+    private static final String DOCUMENT = "<root><Document><periodId>p1</periodId><subdocuments>"
+            + "<item><vid>1</vid><name>a<b>c</b></name></item>"
+            + "<item><vid>x</vid></item>"
+            + "<note>n1</note><note/>"
+            + "</subdocuments><trailer><vid>t</vid></trailer></Document></root>";
+
+    @Test
+    public void localRulesMatchDom() throws Exception {
+        assertSameAsDom(new RuleSet.Builder()
+                .changeNodeName("Document", "Form")
+                .addNewNode("item", "extra")
+                .addNewTextNode("name", "value")
+                .changeNodeName("item", "row")
+                .addNewTextNode("note", "text")
+                .addNewNode("row", "tail")
+                .changeNodeName("vid", "code")
+                .build(), DOCUMENT);
+    }
+
+    @Test
+    public void rulesOnCreatedTagsMatchDom() throws Exception {
+        assertSameAsDom(new RuleSet.Builder()
+                .addNewTextNode("vid", "value")
+                .changeNodeName("value", "text")
+                .addNewNode("text", "mark")
+                .addNewNode("item", "vid")
+                .build(), DOCUMENT);
+    }
+
+    @Test
+    public void validationsAreRejected() throws Exception {
+        assertRejected(new RuleSet.Builder()
+                .changeNodeName("item", "row")
+                .typeValidation("vid", "^\\d+$")
+                .build());
+        assertRejected(new RuleSet.Builder()
+                .crossValidation("note", "periodId")
+                .addNewNode("row", "tail")
+                .build());
+    }
+
+    @Test
+    public void changeRootTagIsRejected() throws Exception {
+        assertRejected(new RuleSet.Builder()
+                .changeNodeName("item", "row")
+                .changeRootTag("vid", "trailer")
+                .build());
+    }
+
+    private static void assertRejected(RuleSet ruleSet) throws Exception {
+        try {
+            new XsltRuleEngine(ruleSet);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //ожидаемо
+        }
+    }
+
+    private static void assertSameAsDom(RuleSet ruleSet, String document) throws Exception {
+        XmlFile xmlFile = new XmlFile(XmlInput.of(document.getBytes(StandardCharsets.UTF_8)));
+        ruleSet.applyTo(xmlFile);
+        ByteArrayOutputStream xsltOutput = new ByteArrayOutputStream();
+        new XsltRuleEngine(ruleSet).transform(XmlInput.of(document.getBytes(StandardCharsets.UTF_8)), xsltOutput);
+        assertEquals(canonical(xmlFile.toByteArray()), canonical(xsltOutput.toByteArray()));
+    }
+
+    private static String canonical(byte[] xml) throws Exception {
+        Transformer transformer = XmlFactories.newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(XmlFactories.newDocumentBuilder().parse(new ByteArrayInputStream(xml))),
+                new StreamResult(writer));
+        return writer.toString();
+    }
+}